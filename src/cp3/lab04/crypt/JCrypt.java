@@ -36,7 +36,7 @@ import java.util.concurrent.locks.ReentrantLock;
             try {
                 process(opts, index);
             } catch (JCryptUtil.Problem e) {
-                System.err.println("ERROR in thread: " + e.getMessage());
+                JCryptLog.error("ERROR in thread: " + e.getMessage());
             }
         }
     }
@@ -59,7 +59,7 @@ import java.util.concurrent.locks.ReentrantLock;
                 try {
                     process(opts, currentFileIndex);
                 } catch (JCryptUtil.Problem e) {
-                    System.err.println("ERROR in thread: " + e.getMessage());
+                    JCryptLog.error("ERROR in thread: " + e.getMessage());
                 }
             }
         }
@@ -83,7 +83,7 @@ import java.util.concurrent.locks.ReentrantLock;
             try {
                 process(opts, index);
             } catch (JCryptUtil.Problem e) {
-                System.err.println("ERROR in thread: " + e.getMessage());
+                JCryptLog.error("ERROR in thread: " + e.getMessage());
             } finally {
                 latch.countDown(); // Signal completion
             }
@@ -112,7 +112,7 @@ import java.util.concurrent.locks.ReentrantLock;
                     try {
                         process(opts, currentFileIndex);
                     } catch (JCryptUtil.Problem e) {
-                        System.err.println("ERROR in thread: " + e.getMessage());
+                        JCryptLog.error("ERROR in thread: " + e.getMessage());
                     }
                 }
             } finally {
@@ -142,9 +142,9 @@ import java.util.concurrent.locks.ReentrantLock;
                 process(opts, index);
                 barrier.await(); // Wait for all threads to complete
             } catch (JCryptUtil.Problem e) {
-                System.err.println("ERROR in thread: " + e.getMessage());
+                JCryptLog.error("ERROR in thread: " + e.getMessage());
             } catch (Exception e) {
-                System.err.println("Barrier error: " + e.getMessage());
+                JCryptLog.error("Barrier error: " + e.getMessage());
             }
         }
     }
@@ -172,11 +172,11 @@ import java.util.concurrent.locks.ReentrantLock;
                     try {
                         process(opts, currentFileIndex);
                     } catch (JCryptUtil.Problem e) {
-                        System.err.println("ERROR in thread: " + e.getMessage());
+                        JCryptLog.error("ERROR in thread: " + e.getMessage());
                     }                }
                 barrier.await(); // Wait for all threads to complete
             } catch (Exception e) {
-                System.err.println("Barrier error: " + e.getMessage());
+                JCryptLog.error("Barrier error: " + e.getMessage());
             }
         }
     }
@@ -212,7 +212,7 @@ import java.util.concurrent.locks.ReentrantLock;
                 try {
                     process(options, currentFileIndex);
                 } catch (JCryptUtil.Problem e) {
-                    System.err.println("ERROR in thread: " + e.getMessage());
+                    JCryptLog.error("ERROR in thread: " + e.getMessage());
                 }
             }
         }
@@ -229,6 +229,18 @@ import java.util.concurrent.locks.ReentrantLock;
     public static void main(String[] args) {
 
         JCryptUtil.Options opts = JCryptUtil.parseOptions(args);
+        JCryptBufferPool.SHARED.setOffHeap(!opts.heapBuffers);
+        JCryptLog.setLevel(opts.logLevel);
+        JCryptSuite.setIterations(opts.kdfIterations);
+        JCryptLog.setConsoleStderrOnly(!opts.saveToFile); // keep stdout for the data
+        if (opts.manifestFile != null) {
+            try {
+                opts.manifest = JCryptManifest.load(opts.manifestFile);
+            } catch (JCryptUtil.Problem e) {
+                System.err.println("ERROR: " + e.getMessage());
+                System.exit(2);
+            }
+        }
 
         long starttime = System.nanoTime();    
         
@@ -256,6 +268,76 @@ import java.util.concurrent.locks.ReentrantLock;
                 ///-----------------------------------\\\
 
           try {
+            if (opts.crack) {
+                // all files are cracked together, in one pass over the candidate passwords
+                crackAll(opts);
+                JCryptLog.info("Time taken (crack): " + (System.nanoTime()-starttime)/1000000000.0 + "s");
+                return;
+            }
+            if (opts.archive != null) {
+                // many files in one encrypted container, added (or extracted) in parallel
+                if (opts.list) {
+                    JCryptArchive.list(opts);
+                } else if (opts.encryptionPassword.length() > 0) {
+                    JCryptArchive.create(opts);
+                } else {
+                    JCryptArchive.extract(opts);
+                }
+                JCryptUtil.clearKeyCache();
+                JCryptLog.info("Time taken (archive): " + (System.nanoTime()-starttime)/1000000000.0 + "s");
+                return;
+            }
+            if (opts.recursive) {
+                // directories are walked in parallel, and their files processed as they are found
+                JCryptWalker walker = new JCryptWalker(opts, opts.threads);
+                JCryptLog.info("Walking " + opts.filenames.length + " files and directories with " + walker.threads() + " threads");
+                walker.run();
+                JCryptUtil.clearKeyCache();
+                JCryptLog.info("Found " + walker.found() + " files" + (walker.failed() > 0 ? ", " + walker.failed() + " failed" : ""));
+                JCryptLog.info("Time taken (recursive): " + (System.nanoTime()-starttime)/1000000000.0 + "s");
+                if (opts.bufferStats) {
+                    JCryptLog.info(JCryptBufferPool.SHARED.toString());
+                }
+                return;
+            }
+            if (opts.pipeline != null) {
+                // separate reader, cipher and writer threads, connected by bounded queues of blocks
+                JCryptPipeline pipeline = new JCryptPipeline(opts, opts.pipeline[0], opts.pipeline[1], opts.pipeline[2]);
+                JCryptLog.info("Pipelining " + opts.filenames.length + " files (at most "
+                        + pipeline.maxBufferedBytes() / 1024 + " KB of buffers in flight)");
+                pipeline.run();
+                JCryptUtil.clearKeyCache();
+                JCryptLog.info(pipeline.report());
+                JCryptLog.info("Time taken (pipeline): " + (System.nanoTime()-starttime)/1000000000.0 + "s");
+                if (opts.bufferStats) {
+                    JCryptLog.info(JCryptBufferPool.SHARED.toString());
+                }
+                return;
+            }
+            if (opts.virtualThreads) {
+                // files wait on I/O in (virtual) threads of their own, cipher work runs on one thread per core
+                JCryptVirtualThreads strategy = new JCryptVirtualThreads(opts, 0);
+                JCryptLog.info("Using " + (strategy.isVirtual() ? "virtual" : "platform") + " threads for "
+                        + opts.filenames.length + " files, " + strategy.cpuThreads() + " cipher threads");
+                strategy.run(new JCryptVirtualThreads.Listener() {
+                    @Override
+                    public void started(int index) {
+                    }
+
+                    @Override
+                    public void finished(int index, String error) {
+                        if (error != null) {
+                            JCryptLog.error("ERROR in thread: " + error);
+                        }
+                    }
+                });
+                JCryptUtil.clearKeyCache();
+                JCryptLog.info("Time taken (virtual threads): " + (System.nanoTime()-starttime)/1000000000.0 + "s");
+                if (opts.bufferStats) {
+                    JCryptLog.info(JCryptBufferPool.SHARED.toString());
+                }
+                return;
+            }
             if (opts.threads > 0) {
 
                 //************************************************/
@@ -265,7 +347,7 @@ import java.util.concurrent.locks.ReentrantLock;
                 int numberOfThreads = Math.min(opts.threads, opts.filenames.length); 
 
         
-                System.out.println("Using " + opts.threads + " threads for " + opts.filenames.length + " files"); 
+                JCryptLog.info("Using " + opts.threads + " threads for " + opts.filenames.length + " files"); 
                 
                 AtomicInteger fileCounter = new AtomicInteger(0); // For default MultiThread or Latch/Barrier with AtomicInteger
                 List<Thread> multiThreads = new ArrayList<>();
@@ -284,16 +366,36 @@ import java.util.concurrent.locks.ReentrantLock;
                 // Option F: Thread Pool (ACTIVE) - Choose ONE approach below:                
                 ExecutorService threadPool = Executors.newFixedThreadPool(numberOfThreads);
                 
-                // send individual file processings tasks to the pool
-                for (int i = 0; i < opts.filenames.length; i++) {
-                    final int fileIndex = i;
-                    threadPool.submit(() ->  {
-                        try {
-                            process(opts, fileIndex);
-                        } catch (JCryptUtil.Problem e) {
-                            System.err.println("ERROR in thread: " + e.getMessage());
-                        }
-                    });
+                if (opts.schedule.equals(JCryptScheduler.LPT)) {
+                    // Option G: pack files onto the workers largest first, by predicted cost
+                    JCryptScheduler scheduler = new JCryptScheduler(opts, numberOfThreads);
+                    JCryptLog.info("Scheduling largest files first (predicted imbalance "
+                            + String.format("%.1f", scheduler.imbalance() * 100) + "%)");
+                    for (int w = 0; w < numberOfThreads; w++) {
+                        final int worker = w;
+                        threadPool.submit(() -> {
+                            int fileIndex;
+                            while ((fileIndex = scheduler.next(worker)) >= 0) {
+                                try {
+                                    process(opts, fileIndex);
+                                } catch (JCryptUtil.Problem e) {
+                                    JCryptLog.error("ERROR in thread: " + e.getMessage());
+                                }
+                            }
+                        });
+                    }
+                } else {
+                    // send individual file processings tasks to the pool
+                    for (int i = 0; i < opts.filenames.length; i++) {
+                        final int fileIndex = i;
+                        threadPool.submit(() ->  {
+                            try {
+                                process(opts, fileIndex);
+                            } catch (JCryptUtil.Problem e) {
+                                JCryptLog.error("ERROR in thread: " + e.getMessage());
+                            }
+                        });
+                    }
                 }
                 
                 threadPool.shutdown();
@@ -302,7 +404,11 @@ import java.util.concurrent.locks.ReentrantLock;
                 } catch (InterruptedException e) {
                     e.printStackTrace();
                 }
-                System.out.println("Time taken (Thread Pool): " + (System.nanoTime()-starttime)/1000000000.0 + "s");
+                JCryptUtil.clearKeyCache(); // wipe key material cached for this batch
+                JCryptLog.info("Time taken (Thread Pool): " + (System.nanoTime()-starttime)/1000000000.0 + "s");
+                if (opts.bufferStats) {
+                    JCryptLog.info(JCryptBufferPool.SHARED.toString());
+                }
 
                 //************************************************/
                 //  Manual Thread Creation (COMMENTED OUT - Use Thread Pool instead)
@@ -346,7 +452,7 @@ import java.util.concurrent.locks.ReentrantLock;
                  //barrier.await();
                 //System.out.println("Time taken (barrier):  " + (System.nanoTime()-starttime)/1000000000.0 + "s"); 
 
-                System.out.println("Using " + opts.threads + " threads for " + opts.filenames.length + " files");
+                JCryptLog.info("Using " + opts.threads + " threads for " + opts.filenames.length + " files");
 
                 }
 
@@ -426,13 +532,34 @@ import java.util.concurrent.locks.ReentrantLock;
 
             // }
               } catch (Exception e) {
+            JCryptLog.flush();
             System.err.println("ERROR: " + e.getMessage());
             System.exit(2);
+        } finally {
+            saveManifest(opts);
+            JCryptLog.flush();
         }
         // ---
 
     }
 
+    /**
+     * Save the manifest (if any) with the files processed by this run.
+     */
+    private static void saveManifest(JCryptUtil.Options opts) {
+        if (opts.manifest == null) {
+            return;
+        }
+        try {
+            opts.manifest.save();
+            if (opts.manifest.skipped() > 0) {
+                JCryptLog.info("Skipped " + opts.manifest.skipped() + " unchanged files");
+            }
+        } catch (JCryptUtil.Problem e) {
+            JCryptLog.error("ERROR: " + e.getMessage());
+        }
+    }
+
     /**
      * Encrypts or decrypts a file based on command-line options.
      * Note: you can modify this if you like.
@@ -440,68 +567,277 @@ import java.util.concurrent.locks.ReentrantLock;
      * @param index the index of the file in the command-line options (for processing multiple files)
      */
     public static void process(JCryptUtil.Options opts, int index) throws JCryptUtil.Problem {
+        if (manifested(opts)) { // skip files unchanged since the last run
+            JCryptManifest.Entry entry = checkManifest(opts, index);
+            if (entry == null) {
+                return;
+            }
+            transform(opts, index);
+            opts.manifest.record(entry);
+            return;
+        }
+        transform(opts, index);
+    }
+
+    /**
+     * @return true if the files processed are checked against (and recorded in) a manifest
+     */
+    static boolean manifested(JCryptUtil.Options opts) {
+        return opts.manifest != null && opts.saveToFile && !opts.crack;
+    }
+
+    /**
+     * Check a file against the manifest, before processing it.
+     * @return the entry to record in the manifest once the file is processed, or null if it is unchanged
+     */
+    static JCryptManifest.Entry checkManifest(JCryptUtil.Options opts, int index) throws JCryptUtil.Problem {
+        boolean encrypt = opts.encryptionPassword.length() > 0;
+        String output = encrypt ? encryptedOutputPath(opts, index) : decryptedOutputPath(opts, index);
+        JCryptManifest.Entry entry = opts.manifest.check(opts.filenames[index], output, opts.manifest.fingerprint(opts));
+        if (entry == null) {
+            JCryptLog.debug("Unchanged " + opts.filenames[index]);
+        }
+        return entry;
+    }
+
+    /**
+     * Encrypts or decrypts a file, as process() does for files that need it.
+     */
+    private static void transform(JCryptUtil.Options opts, int index) throws JCryptUtil.Problem {
+        String filename = opts.filenames[index];
+        boolean decrypt = opts.decryptionPassword.length() > 0;
+        boolean encrypt = opts.encryptionPassword.length() > 0;
+        if (decrypt && JCryptChunked.isChunked(filename)) { // chunked format: decrypt chunks on all cores
+            JCryptLog.info("Decrypting (chunked) " + filename);
+            if (opts.saveToFile && !encrypt) {
+                JCryptChunked.decryptFile(opts.decryptionPassword, filename, decryptedOutputPath(opts, index));
+            } else {
+                output(opts, index, JCryptChunked.decrypt(opts.decryptionPassword, filename));
+            }
+            return;
+        }
+        JCryptSuite suite = JCryptSuite.forName(opts.cipher);
+        boolean sealed = decrypt && JCryptSuite.isSuiteFile(filename);
+        if (sealed || (encrypt && suite != null)) { // versioned format
+            if (opts.saveToFile && !opts.crack && decrypt != encrypt) {
+                if (decrypt) {
+                    JCryptLog.info("Decrypting " + filename);
+                    JCryptSuite.decryptFile(opts.decryptionPassword, filename, decryptedOutputPath(opts, index));
+                } else {
+                    int level = compressionLevel(opts, filename);
+                    JCryptLog.info("Encrypting (" + suite.name + (level > 0 ? ", deflated" : "") + ") " + filename);
+                    suite.encryptFile(opts.encryptionPassword, filename, encryptedOutputPath(opts, index), level);
+                }
+                return;
+            }
+        } else if (opts.saveToFile && !opts.crack && decrypt && encrypt) { // re-key: decrypt into encrypt, block by block
+            JCryptLog.info("Re-encrypting (streamed) " + filename);
+            JCryptStream.rekeyFile(opts.decryptionPassword, opts.encryptionPassword, filename, encryptedOutputPath(opts, index));
+            return;
+        }
+        if (opts.saveToFile && !opts.crack && decrypt != encrypt && !sealed && suite == null) {
+            long size = getFileSize(filename);
+            if (encrypt && size > opts.parallelThreshold) { // large file: encrypt its chunks on all cores
+                JCryptLog.info("Encrypting (chunked) " + filename);
+                JCryptChunked.encryptFile(opts.encryptionPassword, filename, encryptedOutputPath(opts, index), opts.chunkSize);
+                return;
+            }
+            if (encrypt && compressionLevel(opts, filename) > 0) { // compressible: deflate on the way to the cipher
+                JCryptLog.info("Encrypting (deflated) " + filename);
+                JCryptStream.encryptDeflated(opts.encryptionPassword, filename, encryptedOutputPath(opts, index), opts.compression);
+                return;
+            }
+            if (opts.mmap) { // map the files instead of reading them, unless they cannot be mapped
+                if (decrypt) {
+                    JCryptLog.info("Decrypting (mapped) " + filename);
+                    if (JCryptMapped.decryptFile(opts.decryptionPassword, filename, decryptedOutputPath(opts, index))) {
+                        return;
+                    }
+                } else {
+                    JCryptLog.info("Encrypting (mapped) " + filename);
+                    if (JCryptMapped.encryptFile(opts.encryptionPassword, filename, encryptedOutputPath(opts, index))) {
+                        return;
+                    }
+                }
+                JCryptLog.info("Cannot map " + filename + ", using regular I/O");
+            }
+            if (size > opts.streamThreshold) { // large single-step job: stream it in constant memory
+                if (decrypt) {
+                    JCryptLog.info("Decrypting (streamed) " + filename);
+                    JCryptStream.decryptFile(opts.decryptionPassword, filename, decryptedOutputPath(opts, index));
+                } else {
+                    JCryptLog.info("Encrypting (streamed) " + filename);
+                    JCryptStream.encryptFile(opts.encryptionPassword, filename, encryptedOutputPath(opts, index));
+                }
+                return;
+            }
+            // whole file in pooled buffers
+            if (decrypt) {
+                JCryptLog.info("Decrypting " + filename);
+                JCryptUtil.decryptFile(opts.decryptionPassword, filename, decryptedOutputPath(opts, index));
+            } else {
+                JCryptLog.info("Encrypting " + filename);
+                JCryptUtil.encryptFile(opts.encryptionPassword, filename, encryptedOutputPath(opts, index));
+            }
+            return;
+        }
         byte[] decryptedText = null;
-        if (opts.decryptionPassword.length() > 0) { // option requests file to be decrypted
-            System.out.println("Decrypting "+opts.filenames[index]);
-            JCryptUtil.EncryptedData encryptedText = JCryptUtil.readEncryptedFile(opts.filenames[index]);
+        if (decrypt) { // option requests file to be decrypted
+            JCryptLog.info("Decrypting "+filename);
+            JCryptUtil.EncryptedData encryptedText = JCryptUtil.readEncryptedFile(filename);
             decryptedText = JCryptUtil.decrypt(opts.decryptionPassword, encryptedText);
         } else if (opts.crack) { // option requests file to be cracked
-            System.out.println("Cracking " + opts.filenames[index]);
-            JCryptUtil.EncryptedData encryptedText = JCryptUtil.readEncryptedFile(opts.filenames[index]);
-            decryptedText = crack(encryptedText);
+            JCryptLog.info("Cracking " + filename);
+            JCryptUtil.EncryptedData encryptedText = JCryptUtil.readEncryptedFile(filename);
+            decryptedText = crack(encryptedText, opts);
         }
+        output(opts, index, decryptedText);
+    }
+
+    /**
+     * The Deflater level to compress a file with before encrypting it,
+     * or 0 if compression is off (--compress) or its first block does not compress.
+     */
+    private static int compressionLevel(JCryptUtil.Options opts, String filename) throws JCryptUtil.Problem {
+        if (opts.compression > 0 && JCryptCompress.worthCompressing(filename, opts.compression)) {
+            return opts.compression;
+        }
+        if (opts.compression > 0) {
+            JCryptLog.debug("Not compressing " + filename + " (does not compress)");
+        }
+        return 0;
+    }
+
+    /**
+     * Encrypt (if requested) and save or print the data of one file.
+     * @param opts JCrypt command-line options
+     * @param index the index of the file in the command-line options
+     * @param decryptedText the file's decrypted data, or null to read the raw file
+     */
+    static void output(JCryptUtil.Options opts, int index, byte[] decryptedText) throws JCryptUtil.Problem {
         if (opts.encryptionPassword.length() > 0) { // option requests file to be encrypted
             JCryptUtil.EncryptedData encryptedText;
+            if (decryptedText == null && !opts.saveToFile && JCryptSuite.forName(opts.cipher) == null
+                    && getFileSize(opts.filenames[index]) > opts.streamThreshold) {
+                JCryptLog.info("Encrypting (streamed) " + opts.filenames[index]);
+                JCryptStdout.encryptFile(opts, index);
+                return;
+            }
             if (decryptedText == null) {
-                System.out.println("Encrypting " + opts.filenames[index]);
+                JCryptLog.info("Encrypting " + opts.filenames[index]);
                 byte[] buf = JCryptUtil.readRawFile(opts.filenames[index]);
-                encryptedText = JCryptUtil.encrypt(opts.encryptionPassword, buf);
+                encryptedText = JCryptUtil.encrypt(opts.cipher, opts.encryptionPassword, buf);
             } else {
-                System.out.println("Encrypting text");
-                encryptedText = JCryptUtil.encrypt(opts.encryptionPassword, decryptedText);
+                JCryptLog.info("Encrypting text");
+                encryptedText = JCryptUtil.encrypt(opts.cipher, opts.encryptionPassword, decryptedText);
             }
             if (opts.saveToFile) { // save encrypted data to file
-                String outputPath = opts.outputDirectory != null ? 
-                    opts.outputDirectory + File.separator + new File(opts.filenames[index]).getName() + ".encrypted" :
-                    new File(opts.filenames[index]).getName() + ".encrypted";
-                JCryptUtil.writeEncryptedFile(encryptedText, outputPath);
+                JCryptUtil.writeEncryptedFile(encryptedText, encryptedOutputPath(opts, index));
             } else { // print encrypted data to standard out
-                System.out.println(new String(encryptedText.content));
+                JCryptStdout.write(opts, index, encryptedText.content);
             }
         } else if (decryptedText != null) {
             if (opts.saveToFile) { // save decrypted data to file
-                String filename = (new File(opts.filenames[index])).getName();
-                if (filename.substring(filename.length()-".encrypted".length()).equalsIgnoreCase(".encrypted")) {
-                    filename = filename.substring(0, filename.length()-".encrypted".length());
-                } else {
-                    filename = filename + ".decrypted";
-                }
-                
-                String outputFilePath;
-                if (opts.outputDirectory != null) {
-                    outputFilePath = opts.outputDirectory + File.separator + filename;
-                } else {
-                    String pathname = (new File(opts.filenames[index])).getParent();
-                    if (pathname == null) {
-                        outputFilePath = filename;
-                    } else {
-                        outputFilePath = pathname + File.separator + filename;
-                    }
-                }
-
-                JCryptUtil.writeRawFile(decryptedText, outputFilePath);
+                JCryptUtil.writeRawFile(decryptedText, decryptedOutputPath(opts, index));
             } else { // print decrypted data to standard out
-                System.out.println(new String(decryptedText));
+                JCryptStdout.write(opts, index, decryptedText);
             }
         }
     }
 
     /**
-     * Crack encrypted data without knowing the password.
-     * Note: you are expected to implement this for Checkpoint 3.
+     * Name of the file that encrypted output for a given input file is saved to.
+     */
+    static String encryptedOutputPath(JCryptUtil.Options opts, int index) {
+        return opts.outputDirectory != null ?
+            opts.outputDirectory + File.separator + new File(opts.filenames[index]).getName() + ".encrypted" :
+            new File(opts.filenames[index]).getName() + ".encrypted";
+    }
+
+    /**
+     * Name of the file that decrypted output for a given input file is saved to.
+     */
+    static String decryptedOutputPath(JCryptUtil.Options opts, int index) {
+        String filename = (new File(opts.filenames[index])).getName();
+        if (filename.length() >= ".encrypted".length()
+                && filename.substring(filename.length()-".encrypted".length()).equalsIgnoreCase(".encrypted")) {
+            filename = filename.substring(0, filename.length()-".encrypted".length());
+        } else {
+            filename = filename + ".decrypted";
+        }
+
+        if (opts.outputDirectory != null) {
+            return opts.outputDirectory + File.separator + filename;
+        }
+        String pathname = (new File(opts.filenames[index])).getParent();
+        if (pathname == null) {
+            return filename;
+        }
+        return pathname + File.separator + filename;
+    }
+
+    /**
+     * Crack encrypted data without knowing the password,
+     * using the default cracking options.
      */
     public static byte[] crack(JCryptUtil.EncryptedData ciphertext) throws JCryptUtil.Problem {
-        throw new JCryptUtil.Problem("Not implemented");
+        return crack(ciphertext, new JCryptUtil.Options());
+    }
+
+    /**
+     * Crack encrypted data without knowing the password, on opts.crackThreads threads,
+     * by trying the candidate passwords described by opts (see crackSpace).
+     * @return the decrypted data
+     */
+    public static byte[] crack(JCryptUtil.EncryptedData ciphertext, JCryptUtil.Options opts) throws JCryptUtil.Problem {
+        return new JCryptCracker(crackSpace(opts), opts.crackThreads).crack(ciphertext);
+    }
+
+    /**
+     * Crack all files in opts in a single pass over the candidate passwords
+     * (each candidate key is derived once and tried on every unsolved file),
+     * then report, and save or print, each file as process() would.
+     * @param opts JCrypt command-line options
+     */
+    public static void crackAll(JCryptUtil.Options opts) throws JCryptUtil.Problem {
+        JCryptUtil.EncryptedData[] ciphertexts = new JCryptUtil.EncryptedData[opts.filenames.length];
+        for (int i = 0; i < opts.filenames.length; i++) {
+            JCryptLog.info("Cracking " + opts.filenames[i]);
+            ciphertexts[i] = JCryptUtil.readEncryptedFile(opts.filenames[i]);
+        }
+        JCryptCracker cracker = new JCryptCracker(crackSpace(opts), opts.crackThreads);
+        if (opts.resumeFile != null || opts.checkpointFile != null) {
+            JCryptCheckpoint resume = opts.resumeFile != null ? JCryptCheckpoint.load(opts.resumeFile) : null;
+            String file = opts.checkpointFile != null ? opts.checkpointFile : opts.resumeFile;
+            cracker.checkpoint(resume, file, opts.checkpointInterval);
+        }
+        JCryptCracker.Result[] results = cracker.crackAll(opts.filenames, ciphertexts);
+        int solved = 0;
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] == null) {
+                JCryptLog.info(opts.filenames[i] + ": password not found");
+                continue;
+            }
+            solved++;
+            JCryptLog.info(opts.filenames[i] + ": password \"" + results[i].password + "\"");
+            try {
+                output(opts, i, results[i].cleartext);
+            } catch (JCryptUtil.Problem e) {
+                JCryptLog.error("ERROR: " + e.getMessage());
+            }
+        }
+        JCryptLog.info("Cracked " + solved + " of " + results.length + " files");
+    }
+
+    /**
+     * The candidate passwords to try when cracking: the words in opts.wordlist
+     * mangled by opts.rules or, without a wordlist, every password made of
+     * opts.charset with a length between opts.minLength and opts.maxLength.
+     */
+    static JCryptCracker.Space crackSpace(JCryptUtil.Options opts) throws JCryptUtil.Problem {
+        return opts.wordlist != null ?
+            new JCryptWordlist(opts.wordlist, opts.rules) :
+            new JCryptCracker.BruteForce(opts.charset, opts.minLength, opts.maxLength);
     }
 
     public static long getFileSize(String filename) {
@@ -0,0 +1,579 @@
+package cp3.lab04.crypt;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32C;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypted archives of many files (--archive), for batches of small files,
+ * where opening, creating and closing one output file per input and setting up
+ * its cipher costs far more than encrypting it.
+ *
+ * <pre>
+ * header:  magic "JCRA" (4) | version (1) | suite (1) | flags (1) | reserved (1) | index offset (8)
+ * entries: one record each
+ * index:   one record
+ * </pre>
+ * How records are encrypted depends on the cipher (--cipher), whose suite id
+ * is in the header. With an AES suite, each record is a whole file in the
+ * suite's format (see JCryptSuite), sealed in memory: it has its own salt and
+ * IV, its key is derived with HKDF from the master key of the password and the
+ * run's batch salt (so PBKDF2 runs once per archive), and it is authenticated.
+ * With des (suite 0), an entry is an IV (8) and its DES/CBC/PKCS5Padding
+ * ciphertext under the key that PBEWithMD5AndDES derives from the password (as
+ * in the chunked format), and the index an IV (8), the CRC32C of its cleartext
+ * (4) and its ciphertext; only the CRC32Cs check these. The index holds, for every entry, its
+ * name, flags (FLAG_DEFLATE: deflated before encryption, see --compress),
+ * size, CRC32C, and the offset and length of its record, so entries can be
+ * listed without decrypting any of them, and extracted one by one.
+ *
+ * <p>Files are added by the workers of a JCryptWalker, which read, deflate and
+ * encrypt them in parallel, and hand the records to a single writer thread.
+ * Each record is numbered when its worker takes it on, and the writer appends
+ * them in that order, so the archive's layout does not depend on which worker
+ * finishes first. A record keeps its slot (RECORDS_PER_THREAD per worker)
+ * until it is written, so memory stays bounded however many files there are.
+ * If the writer fails, it releases every slot and the workers give up.
+ * Entries are held whole in memory while in flight, so the archive suits
+ * small files; large ones are better encrypted on their own.
+ */
+class JCryptArchive {
+
+    static final int MAGIC = 0x4a435241; // "JCRA"
+    static final int VERSION = 1;
+    static final int SUITE_DES = 0;
+    static final int HEADER_SIZE = 16;
+    static final int IV_SIZE = 8;
+    static final int FLAG_DEFLATE = 1;
+
+    /** Records per worker thread that may be in flight (encrypted, not yet written). */
+    static final int RECORDS_PER_THREAD = 4;
+
+    /** Permits released when the writer gives up, so that no worker waits for a slot again. */
+    private static final int DRAINED = Integer.MAX_VALUE / 2;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /**
+     * What the index knows of one entry.
+     */
+    static class Entry {
+        final String name;
+        final int flags;
+        final long size;
+        final int crc;
+        long offset;
+        long length; // of the record: IV and ciphertext
+
+        Entry(String name, int flags, long size, int crc) {
+            this.name = name;
+            this.flags = flags;
+            this.size = size;
+            this.crc = crc;
+        }
+    }
+
+    /** An entry on its way to the writer (record null if its file failed). */
+    private static class Pending {
+        final Entry entry;
+        final byte[] record;
+
+        Pending(Entry entry, byte[] record) {
+            this.entry = entry;
+            this.record = record;
+        }
+    }
+
+    /**
+     * Encryption of the records of an archive, with its cipher suite or DES.
+     */
+    static class Sealer {
+        final JCryptSuite suite; // null: DES
+        private final String password;
+        private final byte[] key; // DES only
+
+        Sealer(JCryptSuite suite, String password) throws JCryptUtil.Problem {
+            this.suite = suite;
+            this.password = password;
+            this.key = suite == null ? JCryptUtil.pbeKeyAndIv(password) : null;
+        }
+
+        /** The suite id stored in the header. */
+        int id() {
+            return suite == null ? SUITE_DES : suite.id;
+        }
+
+        byte[] seal(byte[] data) throws JCryptUtil.Problem {
+            return suite != null ? suite.encrypt(password, data) : sealDes(key, data);
+        }
+
+        /**
+         * Decrypt (and, with a suite, authenticate) a record.
+         */
+        byte[] open(byte[] record, int offset, int length) throws Exception {
+            if (suite != null) {
+                return JCryptSuite.decrypt(password, Arrays.copyOfRange(record, offset, offset + length));
+            }
+            return unsealDes(key, record, offset, length);
+        }
+    }
+
+    /** Per-thread DES cipher, as in JCryptChunked. */
+    private static final ThreadLocal<Cipher> CIPHERS = new ThreadLocal<Cipher>() {
+        @Override
+        protected Cipher initialValue() {
+            try {
+                return Cipher.getInstance("DES/CBC/PKCS5Padding");
+            } catch (Exception e) {
+                throw new IllegalStateException("DES not available");
+            }
+        }
+    };
+
+    private final JCryptUtil.Options opts;
+    private final String filename;
+    private final Path self;
+    private final Sealer sealer;
+    private final FileChannel out;
+    private final Semaphore slots;
+    private final AtomicLong sequence = new AtomicLong();
+    private final Map<Long, Pending> ready = new HashMap<>(); // guarded by this
+    private final List<Entry> entries = new ArrayList<>(); // written, in order (writer thread only)
+    private final LongAdder bytesIn = new LongAdder();
+    private long total = -1; // number of records, once known (guarded by this)
+    private long position = HEADER_SIZE; // writer thread only
+    private volatile String error;
+
+    private JCryptArchive(JCryptUtil.Options opts, int threads) throws JCryptUtil.Problem {
+        this.opts = opts;
+        this.filename = opts.archive;
+        this.self = Paths.get(filename).toAbsolutePath().normalize();
+        this.sealer = new Sealer(JCryptSuite.forName(opts.cipher), opts.encryptionPassword);
+        this.slots = new Semaphore(threads * RECORDS_PER_THREAD);
+        this.out = JCryptIO.openForWriting(filename);
+    }
+
+    /**
+     * Create an archive of the files and directories of the batch (directories
+     * with all the files in them, selected by --include/--exclude).
+     * @param opts JCrypt command-line options (archive name, password, files, threads, compression)
+     * @return the number of files archived
+     */
+    static long create(JCryptUtil.Options opts) throws JCryptUtil.Problem, InterruptedException {
+        int threads = opts.threads > 0 ? opts.threads : Runtime.getRuntime().availableProcessors();
+        JCryptArchive archive = new JCryptArchive(opts, threads);
+        JCryptWalker walker = new JCryptWalker(opts, threads, (file, relative) -> archive.add(file));
+        Thread writer = new Thread(archive::write, "JCrypt archive writer");
+        boolean ok = false;
+        try {
+            writer.start();
+            walker.run();
+            synchronized (archive) {
+                archive.total = archive.sequence.get();
+                archive.notifyAll();
+            }
+            writer.join();
+            if (archive.error != null) {
+                throw new JCryptUtil.Problem(archive.error);
+            }
+            archive.finish();
+            ok = true;
+            JCryptLog.info("Archived " + archive.entries.size() + " files (" + archive.bytesIn.sum() + " bytes) in "
+                    + archive.position + " bytes" + (walker.failed() > 0 ? ", " + walker.failed() + " failed" : ""));
+            return archive.entries.size();
+        } catch (IOException e) {
+            throw new JCryptUtil.Problem("Cannot write to file \"" + archive.filename + "\"");
+        } finally {
+            if (!ok && writer.isAlive()) {
+                archive.error = "Archive not completed";
+                synchronized (archive) {
+                    archive.notifyAll();
+                }
+                writer.join();
+            }
+            JCryptIO.close(archive.out);
+            if (!ok) {
+                new File(archive.filename).delete();
+            }
+        }
+    }
+
+    /**
+     * Read, deflate (if worth it) and encrypt one file, on a worker thread,
+     * and hand its record to the writer.
+     */
+    private void add(Path file) throws JCryptUtil.Problem, InterruptedException {
+        if (file.toAbsolutePath().normalize().equals(self)) {
+            return; // the archive itself, in a directory being archived
+        }
+        if (error != null) {
+            throw new JCryptUtil.Problem(error);
+        }
+        slots.acquire(); // released by the writer once the record is written
+        if (error != null) {
+            throw new JCryptUtil.Problem(error); // the writer has given up
+        }
+        long number = sequence.getAndIncrement();
+        Pending pending = null;
+        try {
+            byte[] data = JCryptUtil.readRawFile(file.toString());
+            CRC32C crc = new CRC32C();
+            crc.update(data, 0, data.length);
+            Entry entry = new Entry(entryName(file), 0, data.length, (int) crc.getValue());
+            byte[] content = data;
+            if (opts.compression > 0 && JCryptCompress.worthCompressing(data, data.length, opts.compression)) {
+                content = JCryptCompress.deflate(data, data.length, opts.compression);
+                entry = new Entry(entry.name, FLAG_DEFLATE, entry.size, entry.crc);
+            }
+            pending = new Pending(entry, sealer.seal(content));
+            bytesIn.add(data.length);
+            JCryptLog.debug("Archiving " + file);
+        } finally {
+            deliver(number, pending != null ? pending : new Pending(null, null));
+        }
+    }
+
+    private synchronized void deliver(long number, Pending pending) {
+        if (error == null) {
+            ready.put(number, pending);
+        }
+        notifyAll();
+    }
+
+    /**
+     * The writer thread: appends the records in order of their numbers.
+     * On failure it drops what is pending and lets every worker through.
+     */
+    private void write() {
+        try {
+            for (long next = 0; ; next++) {
+                Pending pending;
+                synchronized (this) {
+                    while (!ready.containsKey(next) && next != total && error == null) {
+                        wait();
+                    }
+                    if (next == total || error != null) {
+                        return;
+                    }
+                    pending = ready.remove(next);
+                }
+                try {
+                    if (pending.record != null) {
+                        pending.entry.offset = position;
+                        pending.entry.length = pending.record.length;
+                        JCryptIO.writeFully(out, ByteBuffer.wrap(pending.record), position);
+                        position += pending.record.length;
+                        entries.add(pending.entry);
+                    }
+                } finally {
+                    slots.release();
+                }
+            }
+        } catch (IOException e) {
+            error = "Cannot write to file \"" + filename + "\"";
+        } catch (InterruptedException e) {
+            error = "Archive not completed";
+        } finally {
+            if (error != null) {
+                synchronized (this) {
+                    ready.clear();
+                }
+                slots.release(DRAINED);
+            }
+        }
+    }
+
+    /**
+     * Write the index after the entries, then the header.
+     */
+    private void finish() throws IOException, JCryptUtil.Problem {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(entries.size() * 64 + 16);
+        DataOutputStream index = new DataOutputStream(bytes);
+        index.writeInt(entries.size());
+        for (Entry entry : entries) {
+            index.writeUTF(entry.name);
+            index.writeByte(entry.flags);
+            index.writeLong(entry.size);
+            index.writeInt(entry.crc);
+            index.writeLong(entry.offset);
+            index.writeLong(entry.length);
+        }
+        index.flush();
+        byte[] clear = bytes.toByteArray();
+        byte[] record = sealer.seal(clear);
+        if (sealer.suite != null) {
+            JCryptIO.writeFully(out, ByteBuffer.wrap(record), position);
+        } else {
+            CRC32C crc = new CRC32C();
+            crc.update(clear, 0, clear.length);
+            ByteBuffer buf = ByteBuffer.allocate(IV_SIZE + 4 + record.length - IV_SIZE);
+            buf.put(record, 0, IV_SIZE).putInt((int) crc.getValue()).put(record, IV_SIZE, record.length - IV_SIZE).flip();
+            JCryptIO.writeFully(out, buf, position);
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).put((byte) VERSION).put((byte) sealer.id()).put((byte) 0).put((byte) 0).putLong(position).flip();
+        JCryptIO.writeFully(out, header, 0);
+    }
+
+    /**
+     * Print the entries of an archive: size, stored size, name.
+     * @param opts JCrypt command-line options (archive name, password)
+     */
+    static void list(JCryptUtil.Options opts) throws JCryptUtil.Problem {
+        FileChannel in = JCryptIO.openForReading(opts.archive);
+        try {
+            for (Entry entry : readIndex(in, opts.decryptionPassword, opts.archive).entries) {
+                System.out.println(String.format("%12d %12d %s%s", entry.size, entry.length, entry.name,
+                        (entry.flags & FLAG_DEFLATE) != 0 ? " (deflated)" : ""));
+            }
+        } finally {
+            JCryptIO.close(in);
+        }
+    }
+
+    /**
+     * Extract the entries of an archive, in parallel, into the output directory (-o, or the current one).
+     * @param opts JCrypt command-line options (archive name, password, entries to extract, threads)
+     * @return the number of files extracted
+     */
+    static long extract(JCryptUtil.Options opts) throws JCryptUtil.Problem, InterruptedException {
+        Path root = Paths.get(opts.outputDirectory != null ? opts.outputDirectory : ".").toAbsolutePath().normalize();
+        FileChannel in = JCryptIO.openForReading(opts.archive);
+        int threads = opts.threads > 0 ? opts.threads : Runtime.getRuntime().availableProcessors();
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        LongAdder extracted = new LongAdder();
+        LongAdder failed = new LongAdder();
+        try {
+            Index index = readIndex(in, opts.decryptionPassword, opts.archive);
+            List<Entry> selected = select(index.entries, opts.filenames);
+            for (Entry entry : selected) {
+                workers.execute(() -> {
+                    try {
+                        Path target = root.resolve(entry.name).normalize();
+                        if (!target.startsWith(root)) {
+                            throw new JCryptUtil.Problem("Entry \"" + entry.name + "\" is outside the output directory");
+                        }
+                        byte[] data = open(in, index.sealer, entry, opts.archive);
+                        Files.createDirectories(target.getParent());
+                        JCryptUtil.writeRawFile(data, target.toString());
+                        JCryptLog.debug("Extracted " + entry.name);
+                        extracted.increment();
+                    } catch (JCryptUtil.Problem e) {
+                        JCryptLog.error("ERROR in thread: " + e.getMessage());
+                        failed.increment();
+                    } catch (IOException e) {
+                        JCryptLog.error("ERROR in thread: Cannot create directory for \"" + entry.name + "\"");
+                        failed.increment();
+                    }
+                });
+            }
+        } finally {
+            workers.shutdown();
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            JCryptIO.close(in);
+        }
+        JCryptLog.info("Extracted " + extracted.sum() + " files" + (failed.sum() > 0 ? ", " + failed.sum() + " failed" : ""));
+        return extracted.sum();
+    }
+
+    /**
+     * The entries named on the command line (or under a named directory), or all without names.
+     */
+    private static List<Entry> select(List<Entry> entries, String[] names) {
+        if (names.length == 0) {
+            return entries;
+        }
+        List<Entry> selected = new ArrayList<>();
+        for (String name : names) {
+            String prefix = entryName(Paths.get(name));
+            int found = 0;
+            for (Entry entry : entries) {
+                if (entry.name.equals(prefix) || entry.name.startsWith(prefix + "/")) {
+                    selected.add(entry);
+                    found++;
+                }
+            }
+            if (found == 0) {
+                JCryptLog.error("ERROR: No entry \"" + name + "\" in the archive");
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Read, decrypt and verify one entry.
+     */
+    static byte[] open(FileChannel in, Sealer sealer, Entry entry, String filename) throws JCryptUtil.Problem {
+        byte[] record = new byte[(int) entry.length];
+        byte[] data;
+        try {
+            JCryptIO.readFully(in, ByteBuffer.wrap(record), entry.offset);
+            data = sealer.open(record, 0, record.length);
+            if ((entry.flags & FLAG_DEFLATE) != 0) {
+                data = JCryptCompress.inflate(data, 0, data.length);
+            }
+        } catch (IOException e) {
+            throw new JCryptUtil.Problem("Cannot read from file \"" + filename + "\"");
+        } catch (Exception e) {
+            throw new JCryptUtil.Problem("Decryption of \"" + entry.name + "\" failed ");
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(data, 0, data.length);
+        if (data.length != entry.size || (int) crc.getValue() != entry.crc) {
+            throw new JCryptUtil.Problem("Checksum of \"" + entry.name + "\" invalid ");
+        }
+        return data;
+    }
+
+    /**
+     * The entries of an archive, and how its records are encrypted.
+     */
+    static class Index {
+        final Sealer sealer;
+        final List<Entry> entries;
+
+        Index(Sealer sealer, List<Entry> entries) {
+            this.sealer = sealer;
+            this.entries = entries;
+        }
+    }
+
+    /**
+     * Read and decrypt the index of an archive.
+     * @param password with which the archive is encrypted
+     */
+    static Index readIndex(FileChannel in, String password, String filename) throws JCryptUtil.Problem {
+        try {
+            long size = in.size();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            if (size < HEADER_SIZE) {
+                throw new JCryptUtil.Problem("File \"" + filename + "\" is not a JCrypt archive");
+            }
+            JCryptIO.readFully(in, header, 0);
+            long indexOffset = header.getLong(8);
+            if (header.getInt(0) != MAGIC) {
+                throw new JCryptUtil.Problem("File \"" + filename + "\" is not a JCrypt archive");
+            }
+            if (header.get(4) != VERSION
+                    || indexOffset < HEADER_SIZE || size - indexOffset < IV_SIZE + 4 + 8 || size - indexOffset > Integer.MAX_VALUE) {
+                throw new JCryptUtil.Problem("File \"" + filename + "\" has an unsupported archive format or is truncated");
+            }
+            int suite = header.get(5);
+            Sealer sealer = new Sealer(suite == SUITE_DES ? null : JCryptSuite.forId(suite, filename), password);
+            byte[] record = new byte[(int) (size - indexOffset)];
+            JCryptIO.readFully(in, ByteBuffer.wrap(record), indexOffset);
+            byte[] clear;
+            if (sealer.suite != null) {
+                try {
+                    clear = sealer.open(record, 0, record.length);
+                } catch (Exception e) {
+                    throw new JCryptUtil.Problem("Decryption failed ");
+                }
+            } else {
+                int checksum = ByteBuffer.wrap(record, IV_SIZE, 4).getInt();
+                System.arraycopy(record, 0, record, 4, IV_SIZE); // IV next to the ciphertext
+                try {
+                    clear = sealer.open(record, 4, record.length - 4);
+                } catch (Exception e) {
+                    throw new JCryptUtil.Problem("Decryption failed ");
+                }
+                CRC32C crc = new CRC32C();
+                crc.update(clear, 0, clear.length);
+                if ((int) crc.getValue() != checksum) {
+                    throw new JCryptUtil.Problem("Checksum of the index invalid ");
+                }
+            }
+            DataInputStream index = new DataInputStream(new ByteArrayInputStream(clear));
+            int count = index.readInt();
+            List<Entry> entries = new ArrayList<>(Math.min(count, clear.length / 32));
+            for (int i = 0; i < count; i++) {
+                Entry entry = new Entry(index.readUTF(), index.readByte(), index.readLong(), index.readInt());
+                entry.offset = index.readLong();
+                entry.length = index.readLong();
+                if (entry.offset < HEADER_SIZE || entry.length < IV_SIZE || entry.offset + entry.length > indexOffset) {
+                    throw new JCryptUtil.Problem("Index of \"" + filename + "\" is corrupt");
+                }
+                entries.add(entry);
+            }
+            return new Index(sealer, entries);
+        } catch (IOException e) {
+            throw new JCryptUtil.Problem("Cannot read from file \"" + filename + "\"");
+        }
+    }
+
+    /**
+     * Encrypt data into a DES record: a fresh IV, then the ciphertext.
+     */
+    private static byte[] sealDes(byte[] key, byte[] data) throws JCryptUtil.Problem {
+        byte[] record = new byte[IV_SIZE + (data.length / 8 + 1) * 8];
+        byte[] iv = new byte[IV_SIZE];
+        RANDOM.nextBytes(iv);
+        System.arraycopy(iv, 0, record, 0, IV_SIZE);
+        try {
+            Cipher cipher = CIPHERS.get();
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, 0, 8, "DES"), new IvParameterSpec(record, 0, IV_SIZE));
+            cipher.doFinal(data, 0, data.length, record, IV_SIZE);
+        } catch (Exception e) {
+            throw new JCryptUtil.Problem("Encryption failed");
+        }
+        return record;
+    }
+
+    /**
+     * Decrypt a DES record (IV, then ciphertext).
+     */
+    private static byte[] unsealDes(byte[] key, byte[] record, int offset, int length) throws Exception {
+        Cipher cipher = CIPHERS.get();
+        cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, 0, 8, "DES"), new IvParameterSpec(record, offset, IV_SIZE));
+        return cipher.doFinal(record, offset + IV_SIZE, length - IV_SIZE);
+    }
+
+    /**
+     * The name of a file in the archive: its path as given, with '/' between
+     * names, and without a root or leading "..", so it extracts under the
+     * output directory.
+     */
+    static String entryName(Path file) {
+        Path path = file.normalize();
+        if (path.getRoot() != null) {
+            path = path.getRoot().relativize(path);
+        }
+        StringBuilder name = new StringBuilder();
+        for (Path part : path) {
+            String s = part.toString();
+            if (s.equals("..") || s.isEmpty() || (s.equals(".") && name.length() == 0)) {
+                continue;
+            }
+            if (name.length() > 0) {
+                name.append('/');
+            }
+            name.append(s);
+        }
+        return name.toString();
+    }
+}
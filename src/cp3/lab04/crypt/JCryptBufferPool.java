@@ -0,0 +1,212 @@
+package cp3.lab04.crypt;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Size-classed pool of reusable buffers: byte arrays on the heap and direct
+ * ByteBuffers off the heap. Requests are rounded up to a size class (four
+ * classes per power of two, so at most 25% is wasted) and served from the idle
+ * buffers of that class when there are any. Released buffers are kept up to
+ * a limit on the total bytes held idle; beyond it they are left to the GC.
+ *
+ * <p>Every acquired buffer should be released exactly once, and not used
+ * afterwards. hits/misses and bytes outstanding (acquired but not yet released)
+ * are tracked, so a leak shows up as outstanding bytes at the end of a batch.
+ */
+class JCryptBufferPool {
+
+    /** Pool shared by all JCrypt I/O and cipher paths. */
+    static final JCryptBufferPool SHARED = new JCryptBufferPool(
+            Math.min(256L * 1024 * 1024, Runtime.getRuntime().maxMemory() / 8));
+
+    /** Smallest size class (smaller requests get a buffer of this size). */
+    static final int MIN_CLASS_BITS = 12; // 4 KB
+    /** Largest pooled size class; larger buffers are allocated and dropped every time. */
+    static final int MAX_CLASS_BITS = 28; // 256 MB
+    private static final int SUBCLASSES = 4;
+
+    private final long maxIdleBytes;
+    private volatile boolean offHeap = true;
+    private final Pool<byte[]>[] heap;
+    private final Pool<ByteBuffer>[] direct;
+    private final AtomicLong idleBytes = new AtomicLong();
+    private final AtomicLong outstandingBytes = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    private static class Pool<T> {
+        final ConcurrentLinkedQueue<T> idle = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * @param maxIdleBytes bytes of released buffers kept for reuse, over all size classes
+     */
+    JCryptBufferPool(long maxIdleBytes) {
+        this.maxIdleBytes = maxIdleBytes;
+        int classes = (MAX_CLASS_BITS - MIN_CLASS_BITS) * SUBCLASSES + 1;
+        heap = pools(classes);
+        direct = pools(classes);
+    }
+
+    /**
+     * One empty pool per size class.
+     */
+    private static <T> Pool<T>[] pools(int classes) {
+        @SuppressWarnings("unchecked")
+        Pool<T>[] pools = (Pool<T>[]) new Pool<?>[classes];
+        for (int i = 0; i < classes; i++) {
+            pools[i] = new Pool<>();
+        }
+        return pools;
+    }
+
+    /**
+     * Index of the smallest size class holding size bytes, or -1 if it is too large to pool.
+     */
+    static int sizeClass(long size) {
+        if (size <= 1 << MIN_CLASS_BITS) {
+            return 0;
+        }
+        if (size > 1L << MAX_CLASS_BITS) {
+            return -1;
+        }
+        int bits = 63 - Long.numberOfLeadingZeros(size - 1); // base = 2^bits < size <= 2^(bits+1)
+        long step = (1L << bits) / SUBCLASSES;
+        long sub = (size - (1L << bits) + step - 1) / step; // 1..SUBCLASSES
+        return (bits - MIN_CLASS_BITS) * SUBCLASSES + (int) sub;
+    }
+
+    /**
+     * Size in bytes of a size class.
+     */
+    static int classSize(int sizeClass) {
+        if (sizeClass == 0) {
+            return 1 << MIN_CLASS_BITS;
+        }
+        int bits = (sizeClass - 1) / SUBCLASSES + MIN_CLASS_BITS;
+        int sub = (sizeClass - 1) % SUBCLASSES + 1;
+        return (1 << bits) + sub * ((1 << bits) / SUBCLASSES);
+    }
+
+    /**
+     * Take a heap array of at least the given length.
+     */
+    byte[] array(int minLength) {
+        int c = sizeClass(minLength);
+        byte[] array = c < 0 ? null : take(heap[c], classSize(c));
+        if (array == null) {
+            array = new byte[c < 0 ? minLength : classSize(c)];
+        }
+        outstandingBytes.addAndGet(array.length);
+        return array;
+    }
+
+    /**
+     * Return an array obtained from array().
+     */
+    void release(byte[] array) {
+        if (array != null) {
+            outstandingBytes.addAndGet(-array.length);
+            give(heap, array, array.length);
+        }
+    }
+
+    /**
+     * Take a cleared direct buffer of at least the given capacity, with its limit set to that capacity.
+     */
+    ByteBuffer direct(int minCapacity) {
+        int c = sizeClass(minCapacity);
+        ByteBuffer buffer = c < 0 ? null : take(direct[c], classSize(c));
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(c < 0 ? minCapacity : classSize(c));
+        }
+        outstandingBytes.addAndGet(buffer.capacity());
+        buffer.clear();
+        buffer.limit(minCapacity);
+        return buffer;
+    }
+
+    /**
+     * Take a cleared buffer for I/O: direct() if the pool is off-heap, else a heap array wrapped in a ByteBuffer.
+     */
+    ByteBuffer buffer(int minCapacity) {
+        if (offHeap) {
+            return direct(minCapacity);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(array(minCapacity));
+        buffer.limit(minCapacity);
+        return buffer;
+    }
+
+    /**
+     * Choose between direct (default) and heap buffers for buffer().
+     */
+    void setOffHeap(boolean offHeap) {
+        this.offHeap = offHeap;
+    }
+
+    /**
+     * Return a buffer obtained from direct() or buffer().
+     */
+    void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        if (!buffer.isDirect()) {
+            release(buffer.array());
+            return;
+        }
+        outstandingBytes.addAndGet(-buffer.capacity());
+        give(direct, buffer, buffer.capacity());
+    }
+
+    private <T> T take(Pool<T> pool, int size) {
+        T buffer = pool.idle.poll();
+        if (buffer == null) {
+            misses.increment();
+            return null;
+        }
+        idleBytes.addAndGet(-size);
+        hits.increment();
+        return buffer;
+    }
+
+    private <T> void give(Pool<T>[] pools, T buffer, int size) {
+        int c = sizeClass(size);
+        if (c < 0 || classSize(c) != size) {
+            return; // not pooled
+        }
+        if (idleBytes.addAndGet(size) > maxIdleBytes) {
+            idleBytes.addAndGet(-size); // pool full: let the GC free it
+            return;
+        }
+        pools[c].idle.offer(buffer);
+    }
+
+    /**
+     * Fraction of requests served from idle buffers.
+     */
+    double hitRate() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total > 0 ? (double) h / total : 0;
+    }
+
+    /**
+     * Bytes of buffers acquired and not released yet.
+     */
+    long outstandingBytes() {
+        return outstandingBytes.get();
+    }
+
+    @Override
+    public String toString() {
+        long h = hits.sum();
+        long m = misses.sum();
+        return String.format("Buffer pool: %d hits, %d misses (%.1f%% hit rate), %d KB outstanding, %d KB idle",
+                h, m, hitRate() * 100, outstandingBytes() / 1024, idleBytes.get() / 1024);
+    }
+}
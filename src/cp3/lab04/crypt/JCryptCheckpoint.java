@@ -0,0 +1,214 @@
+package cp3.lab04.crypt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Progress of a crack session: which chunks of the candidate space are finished
+ * and which files are solved. Finished chunks were only searched for the files
+ * of that session, so a checkpoint also records those files (by name and digest
+ * of their contents) and can only be resumed for the same files. Finished chunks are kept as a set of disjoint
+ * intervals; work-stealing workers finish mostly contiguous runs of chunks, so
+ * the set stays small however long the session runs.
+ * Saved checkpoints let a preempted session continue with --resume.
+ */
+class JCryptCheckpoint {
+
+    private static final int MAGIC = 0x4a43434b; // "JCCK"
+    private static final int VERSION = 1;
+
+    private final String space;
+    private final long chunks;
+    private Map<String, String> targets; // file name -> digest of its contents, once known
+    private final TreeMap<Long, Long> finished = new TreeMap<>(); // start -> end (exclusive)
+    private final Map<String, String> solved = new LinkedHashMap<>(); // file name -> password
+
+    /**
+     * @param space description of the candidate space (JCryptCracker.Space.describe())
+     * @param chunks number of chunks the space is divided into
+     */
+    JCryptCheckpoint(String space, long chunks) {
+        this.space = space;
+        this.chunks = chunks;
+    }
+
+    /**
+     * Check that this checkpoint belongs to the given candidate space.
+     */
+    void validate(String space, long chunks) throws JCryptUtil.Problem {
+        if (!this.space.equals(space) || this.chunks != chunks) {
+            throw new JCryptUtil.Problem("Checkpoint is for a different search (" + this.space + ")");
+        }
+    }
+
+    /**
+     * Record the files being cracked, or check that they are those of the checkpoint being resumed.
+     * @param targets file name -> digest of its contents
+     */
+    synchronized void targets(Map<String, String> targets) throws JCryptUtil.Problem {
+        if (this.targets == null) {
+            this.targets = new TreeMap<>(targets);
+        } else if (!this.targets.equals(targets)) {
+            throw new JCryptUtil.Problem("Checkpoint is for different files (" + String.join(", ", this.targets.keySet()) + ")");
+        }
+    }
+
+    /**
+     * Mark a chunk as finished.
+     */
+    synchronized void finish(long chunk) {
+        long start = chunk;
+        long end = chunk + 1;
+        Map.Entry<Long, Long> before = finished.floorEntry(chunk);
+        if (before != null && before.getValue() >= chunk) {
+            if (before.getValue() >= end) {
+                return; // already finished
+            }
+            start = before.getKey();
+        }
+        Long after = finished.get(end);
+        if (after != null) {
+            finished.remove(end);
+            end = after;
+        }
+        finished.put(start, end);
+    }
+
+    /**
+     * @return true if every chunk from..to-1 is finished
+     */
+    synchronized boolean isFinished(long from, long to) {
+        Map.Entry<Long, Long> interval = finished.floorEntry(from);
+        return interval != null && interval.getValue() >= to;
+    }
+
+    /**
+     * Number of finished chunks.
+     */
+    synchronized long finishedChunks() {
+        long count = 0;
+        for (Map.Entry<Long, Long> interval : finished.entrySet()) {
+            count += interval.getValue() - interval.getKey();
+        }
+        return count;
+    }
+
+    /**
+     * Record the password of a solved file.
+     */
+    synchronized void solve(String filename, String password) {
+        solved.put(filename, password);
+    }
+
+    /**
+     * Password of a file solved earlier in this session, or null.
+     */
+    synchronized String password(String filename) {
+        return solved.get(filename);
+    }
+
+    /**
+     * Write the checkpoint to a file (atomically, via a temporary file).
+     * Only the snapshot is taken under the lock; the I/O happens outside it.
+     */
+    void save(String filename) throws JCryptUtil.Problem {
+        long[] intervals;
+        String[][] passwords;
+        String[][] files;
+        synchronized (this) {
+            intervals = new long[finished.size() * 2];
+            int i = 0;
+            for (Map.Entry<Long, Long> interval : finished.entrySet()) {
+                intervals[i++] = interval.getKey();
+                intervals[i++] = interval.getValue();
+            }
+            passwords = new String[solved.size()][];
+            i = 0;
+            for (Map.Entry<String, String> entry : solved.entrySet()) {
+                passwords[i++] = new String[] { entry.getKey(), entry.getValue() };
+            }
+            files = new String[targets == null ? 0 : targets.size()][];
+            i = 0;
+            if (targets != null) {
+                for (Map.Entry<String, String> entry : targets.entrySet()) {
+                    files[i++] = new String[] { entry.getKey(), entry.getValue() };
+                }
+            }
+        }
+        File target = new File(filename);
+        File temp = new File(target.getAbsoluteFile().getParentFile(), target.getName() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(space);
+                out.writeLong(chunks);
+                out.writeInt(files.length);
+                for (String[] entry : files) {
+                    out.writeUTF(entry[0]);
+                    out.writeUTF(entry[1]);
+                }
+                out.writeInt(intervals.length / 2);
+                for (long bound : intervals) {
+                    out.writeLong(bound);
+                }
+                out.writeInt(passwords.length);
+                for (String[] entry : passwords) {
+                    out.writeUTF(entry[0]);
+                    out.writeUTF(entry[1]);
+                }
+            } finally {
+                out.close();
+            }
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new JCryptUtil.Problem("Cannot write to file \"" + filename + "\"");
+        }
+    }
+
+    /**
+     * Read a checkpoint written by save().
+     */
+    static JCryptCheckpoint load(String filename) throws JCryptUtil.Problem {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename)));
+        } catch (FileNotFoundException e) {
+            throw new JCryptUtil.Problem("File \"" + filename + "\" not found");
+        }
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new JCryptUtil.Problem("File \"" + filename + "\" is not a JCrypt checkpoint");
+            }
+            JCryptCheckpoint checkpoint = new JCryptCheckpoint(in.readUTF(), in.readLong());
+            checkpoint.targets = new TreeMap<>();
+            for (int n = in.readInt(); n > 0; n--) {
+                checkpoint.targets.put(in.readUTF(), in.readUTF());
+            }
+            for (int n = in.readInt(); n > 0; n--) {
+                checkpoint.finished.put(in.readLong(), in.readLong());
+            }
+            for (int n = in.readInt(); n > 0; n--) {
+                checkpoint.solved.put(in.readUTF(), in.readUTF());
+            }
+            return checkpoint;
+        } catch (IOException e) {
+            throw new JCryptUtil.Problem("Cannot read from file \"" + filename + "\"");
+        } finally {
+            try { in.close(); } catch (IOException e) {}
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package cp3.lab04.crypt;
+
+import java.security.GeneralSecurityException;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+import javax.crypto.Cipher;
+
+/**
+ * Integrity checks of the legacy and chunked formats. New files are checked
+ * with CRC32C, which the JVM computes with the CPU's CRC32 instructions;
+ * files written before are checked with CRC32. The 8-byte checksum of legacy
+ * files tells them apart: CRC32 is stored with zero high bytes, CRC32C with
+ * the high bytes "JCRC", or "JCRZ" if the cleartext was deflated before it
+ * was encrypted (the checksum is still that of the original cleartext). (Files
+ * of the cipher suites have no checksum: their authentication tags cover the
+ * content.)
+ *
+ * <p>The checksum is updated a block at a time inside the cipher loop, while
+ * the block is in cache, instead of in a separate pass over the data. Checksums
+ * of consecutive pieces can be combined without the data, so chunks checked in
+ * parallel still give the checksum of the whole file.
+ */
+class JCryptChecksum {
+
+    /** High half of the stored checksum of legacy files checked with CRC32C. */
+    static final int CRC32C_MAGIC = 0x4a435243; // "JCRC"
+
+    /** High half of the stored checksum (CRC32C) of legacy files whose cleartext was deflated. */
+    static final int DEFLATED_MAGIC = 0x4a43525a; // "JCRZ"
+
+    /** Amount of data run through the cipher per checksum update. */
+    static final int BLOCK_SIZE = JCryptIO.BLOCK_SIZE;
+
+    private static final int POLY = 0x82f63b78; // CRC32C (Castagnoli), reflected
+
+    /** x^(2^n) modulo POLY, for combine(). */
+    private static final int[] X2N = new int[32];
+
+    static {
+        int p = 1 << 30; // x^1
+        X2N[0] = p;
+        for (int n = 1; n < 32; n++) {
+            X2N[n] = p = multiply(p, p);
+        }
+    }
+
+    /**
+     * The checksum for new files.
+     */
+    static Checksum create() {
+        return new CRC32C();
+    }
+
+    /**
+     * The checksum matching a value stored in a legacy file.
+     */
+    static Checksum forStored(long stored) {
+        return (stored >>> 32) == CRC32C_MAGIC || isDeflated(stored) ? new CRC32C() : new CRC32();
+    }
+
+    /**
+     * Whether a value stored in a legacy file says that its cleartext was deflated.
+     */
+    static boolean isDeflated(long stored) {
+        return (stored >>> 32) == DEFLATED_MAGIC;
+    }
+
+    /**
+     * The value to store in a legacy file (with the marker of the algorithm).
+     */
+    static long stored(Checksum checksum) {
+        return stored(checksum, false);
+    }
+
+    /**
+     * The value to store in a legacy file (with the marker of the algorithm,
+     * and of compression for a CRC32C).
+     */
+    static long stored(Checksum checksum, boolean deflated) {
+        if (checksum instanceof CRC32C) {
+            return (long) (deflated ? DEFLATED_MAGIC : CRC32C_MAGIC) << 32 | checksum.getValue();
+        }
+        return checksum.getValue();
+    }
+
+    /**
+     * Check a checksum of the cleartext against a value stored in a legacy file.
+     */
+    static boolean matches(long stored, Checksum checksum) {
+        return stored(checksum, isDeflated(stored)) == stored;
+    }
+
+    /**
+     * Check data against a value stored in a legacy file.
+     */
+    static boolean matches(long stored, byte[] data, int offset, int length) {
+        Checksum checksum = forStored(stored);
+        checksum.update(data, offset, length);
+        return matches(stored, checksum);
+    }
+
+    /**
+     * Encrypt or decrypt a whole array (like Cipher.doFinal), updating the
+     * checksum with the cleartext a block at a time: before the block goes
+     * into the cipher when encrypting, as it comes out when decrypting.
+     * @param cipher an initialised cipher
+     * @param input the data to encrypt or decrypt
+     * @param length the number of bytes of input
+     * @param output where the result goes (at least cipher.getOutputSize(length) bytes)
+     * @param checksum updated with the cleartext
+     * @param encrypting true if the input is the cleartext
+     * @return the number of bytes written to output
+     */
+    static int doFinal(Cipher cipher, byte[] input, int length, byte[] output, Checksum checksum, boolean encrypting)
+            throws GeneralSecurityException {
+        int written = 0;
+        for (int offset = 0; offset < length; offset += BLOCK_SIZE) {
+            int n = Math.min(BLOCK_SIZE, length - offset);
+            if (encrypting) {
+                checksum.update(input, offset, n);
+            }
+            int produced = cipher.update(input, offset, n, output, written);
+            if (!encrypting) {
+                checksum.update(output, written, produced);
+            }
+            written += produced;
+        }
+        int produced = cipher.doFinal(output, written);
+        if (!encrypting) {
+            checksum.update(output, written, produced);
+        }
+        return written + produced;
+    }
+
+    /**
+     * The CRC32C of two consecutive pieces of data, from their CRC32Cs.
+     * @param crc1 CRC32C of the first piece
+     * @param crc2 CRC32C of the second piece
+     * @param length2 length of the second piece
+     */
+    static int combine(int crc1, int crc2, long length2) {
+        // appending length2 bytes multiplies the first CRC by x^(8 * length2)
+        int p = 1 << 31; // x^0
+        for (int k = 3; length2 != 0; length2 >>>= 1, k++) {
+            if ((length2 & 1) != 0) {
+                p = multiply(X2N[k & 31], p);
+            }
+        }
+        return multiply(p, crc1) ^ crc2;
+    }
+
+    /**
+     * Product of two polynomials modulo POLY (bit-reflected, as in the CRC).
+     */
+    private static int multiply(int a, int b) {
+        int product = 0;
+        for (int m = 1 << 31; m != 0; m >>>= 1) {
+            if ((a & m) != 0) {
+                product ^= b;
+                if ((a & (m - 1)) == 0) {
+                    break;
+                }
+            }
+            b = (b & 1) != 0 ? (b >>> 1) ^ POLY : b >>> 1;
+        }
+        return product;
+    }
+}
@@ -0,0 +1,404 @@
+package cp3.lab04.crypt;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Chunked container format, whose chunks are encrypted independently so that
+ * all cores can work on one large file at once.
+ *
+ * <pre>
+ * header:  magic "JCRX" (4) | version (1) | suite (1) | flags (1) | reserved (1)
+ *          | chunk size (4) | cleartext length (8)
+ * chunks:  IV (8) | CRC32C of the chunk's cleartext (4) | ciphertext
+ * trailer: CRC32C of the whole cleartext (4)
+ * </pre>
+ * Each chunk holds chunk size bytes of cleartext (the last one possibly fewer),
+ * encrypted with DES/CBC/PKCS5Padding under the key that PBEWithMD5AndDES derives
+ * from the password, with its own random IV. Since the ciphertext length of a
+ * chunk follows from its cleartext length, every chunk's position in the file is
+ * known in advance and chunks can be read and written in any order.
+ * The checksum of the whole file is combined from those of its chunks
+ * (JCryptChecksum.combine) as the parallel tasks finish, so it costs no extra
+ * pass, and it catches chunks that were swapped or copied between files.
+ * (Version 1 files have CRC32 checksums per chunk, and no trailer.)
+ *
+ * <p>Legacy files (JCryptUtil.writeEncryptedFile) start with a CRC32 stored as
+ * 8 bytes, whose first 4 bytes are always zero, so they are never mistaken for
+ * this format.
+ */
+public class JCryptChunked {
+
+    static final int MAGIC = 0x4a435258; // "JCRX"
+    static final int VERSION = 2;
+    static final int SUITE_DES = 0;
+    static final int HEADER_SIZE = 20;
+    static final int CHUNK_OVERHEAD = 12; // IV + checksum
+    static final int TRAILER_SIZE = 4; // since version 2
+
+    /** Default amount of cleartext per chunk. */
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+
+    /** Largest amount of cleartext per chunk (every worker holds a chunk, twice, in memory). */
+    public static final int MAX_CHUNK_SIZE = 64 << 20;
+
+    /** Workers shared by all chunked jobs (one per core). */
+    private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /**
+     * Layout of a chunked file, as stored in its header.
+     */
+    static class Header {
+        int version = VERSION;
+        int suite = SUITE_DES;
+        int flags = 0;
+        int chunkSize;
+        long length;
+
+        long chunks() {
+            return (length + chunkSize - 1) / chunkSize;
+        }
+
+        /** Cleartext bytes in chunk i. */
+        int cleartextSize(long i) {
+            return (int) Math.min(chunkSize, length - i * chunkSize);
+        }
+
+        /** Ciphertext bytes in a chunk with n bytes of cleartext (PKCS#5 padding). */
+        static int ciphertextSize(int n) {
+            return (n / 8 + 1) * 8;
+        }
+
+        /** File offset of chunk i's record. */
+        long offset(long i) {
+            return HEADER_SIZE + i * (CHUNK_OVERHEAD + ciphertextSize(chunkSize));
+        }
+
+        /** Cleartext bytes in chunks from (inclusive) to to (exclusive). */
+        long cleartextSize(long from, long to) {
+            return Math.min(to * chunkSize, length) - from * chunkSize;
+        }
+
+        /** File offset of the trailer (or the end of a version 1 file). */
+        long trailerOffset() {
+            long chunks = chunks();
+            return chunks == 0 ? HEADER_SIZE : offset(chunks - 1) + CHUNK_OVERHEAD + ciphertextSize(cleartextSize(chunks - 1));
+        }
+
+        long fileSize() {
+            return trailerOffset() + (version >= 2 ? TRAILER_SIZE : 0);
+        }
+
+        /** A checksum for the chunks of this version. */
+        Checksum checksum() {
+            return version >= 2 ? JCryptChecksum.create() : new CRC32();
+        }
+
+        void write(ByteBuffer buf) {
+            buf.putInt(MAGIC).put((byte) version).put((byte) suite).put((byte) flags).put((byte) 0);
+            buf.putInt(chunkSize).putLong(length);
+        }
+
+        static Header read(ByteBuffer buf, String filename) throws JCryptUtil.Problem {
+            if (buf.remaining() < HEADER_SIZE || buf.getInt() != MAGIC) {
+                throw new JCryptUtil.Problem("File \"" + filename + "\" is not a chunked JCrypt file");
+            }
+            Header header = new Header();
+            header.version = buf.get();
+            header.suite = buf.get();
+            header.flags = buf.get();
+            buf.get();
+            header.chunkSize = buf.getInt();
+            header.length = buf.getLong();
+            if (header.version < 1 || header.version > VERSION || header.suite != SUITE_DES
+                    || header.chunkSize <= 0 || header.chunkSize % 8 != 0 || header.length < 0) {
+                throw new JCryptUtil.Problem("File \"" + filename + "\" has an unsupported chunked format");
+            }
+            if (header.chunkSize > MAX_CHUNK_SIZE) {
+                throw new JCryptUtil.Problem("File \"" + filename + "\" has chunks of " + header.chunkSize
+                        + " bytes, more than " + MAX_CHUNK_SIZE);
+            }
+            return header;
+        }
+    }
+
+    /**
+     * Check whether a file is in the chunked format (rather than the legacy one).
+     */
+    public static boolean isChunked(String filename) {
+        try (FileChannel in = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            while (magic.hasRemaining() && in.read(magic) > 0) {
+            }
+            return !magic.hasRemaining() && magic.getInt(0) == MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Encrypt a file into the chunked format, encrypting its chunks in parallel.
+     * @param password with which the cleartext is to be encrypted
+     * @param source name of the cleartext file
+     * @param target name of the encrypted file to write
+     * @param chunkSize bytes of cleartext per chunk (a multiple of 8, at most MAX_CHUNK_SIZE)
+     */
+    public static void encryptFile(String password, String source, String target, int chunkSize) throws JCryptUtil.Problem {
+        if (chunkSize <= 0 || chunkSize % 8 != 0 || chunkSize > MAX_CHUNK_SIZE) {
+            throw new JCryptUtil.Problem("Chunk size must be a multiple of 8 from 8 to " + MAX_CHUNK_SIZE);
+        }
+        byte[] key = JCryptUtil.pbeKeyAndIv(password);
+        try (FileChannel in = JCryptIO.openForReading(source); FileChannel out = JCryptIO.openForWriting(target)) {
+            Header header = new Header();
+            header.chunkSize = chunkSize;
+            header.length = in.size();
+            ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE);
+            header.write(buf);
+            buf.flip();
+            JCryptIO.writeFully(out, buf, 0);
+            int crc = run(new ChunkTask(header, key, in, out, null, true, 0, header.chunks()));
+            buf.clear();
+            buf.putInt(crc).flip();
+            JCryptIO.writeFully(out, buf, header.trailerOffset());
+        } catch (IOException e) {
+            new File(target).delete();
+            throw new JCryptUtil.Problem("Cannot encrypt \"" + source + "\" to \"" + target + "\"");
+        } catch (JCryptUtil.Problem e) {
+            new File(target).delete();
+            throw e;
+        }
+    }
+
+    /**
+     * Decrypt a file in the chunked format, decrypting its chunks in parallel.
+     * Note: the target file is deleted if decryption or a checksum test fails.
+     * @param password with which the ciphertext is encrypted
+     * @param source name of the encrypted file
+     * @param target name of the cleartext file to write
+     */
+    public static void decryptFile(String password, String source, String target) throws JCryptUtil.Problem {
+        byte[] key = JCryptUtil.pbeKeyAndIv(password);
+        try (FileChannel in = JCryptIO.openForReading(source); FileChannel out = JCryptIO.openForWriting(target)) {
+            Header header = readHeader(in, source);
+            verify(header, in, run(new ChunkTask(header, key, in, out, null, false, 0, header.chunks())), source);
+        } catch (IOException e) {
+            new File(target).delete();
+            throw new JCryptUtil.Problem("Cannot decrypt \"" + source + "\" to \"" + target + "\"");
+        } catch (JCryptUtil.Problem e) {
+            new File(target).delete();
+            throw e;
+        }
+    }
+
+    /**
+     * Decrypt a file in the chunked format into memory, decrypting its chunks in parallel.
+     * @param password with which the ciphertext is encrypted
+     * @param filename name of the encrypted file
+     * @return decrypted cleartext
+     */
+    public static byte[] decrypt(String password, String filename) throws JCryptUtil.Problem {
+        byte[] key = JCryptUtil.pbeKeyAndIv(password);
+        try (FileChannel in = JCryptIO.openForReading(filename)) {
+            Header header = readHeader(in, filename);
+            if (header.length > Integer.MAX_VALUE - 8) {
+                throw new JCryptUtil.Problem("File \"" + filename + "\" is too large to decrypt into memory");
+            }
+            byte[] cleartext = new byte[(int) header.length];
+            verify(header, in, run(new ChunkTask(header, key, in, null, cleartext, false, 0, header.chunks())), filename);
+            return cleartext;
+        } catch (IOException e) {
+            throw new JCryptUtil.Problem("Cannot read from file \"" + filename + "\"");
+        }
+    }
+
+    static Header readHeader(FileChannel in, String filename) throws IOException, JCryptUtil.Problem {
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE);
+        JCryptIO.readFully(in, buf, 0);
+        buf.flip();
+        Header header = Header.read(buf, filename);
+        if (in.size() != header.fileSize()) {
+            throw new JCryptUtil.Problem("File \"" + filename + "\" is truncated or corrupt");
+        }
+        return header;
+    }
+
+    /**
+     * Check the checksum of the whole cleartext against the trailer (from version 2).
+     */
+    private static void verify(Header header, FileChannel in, int crc, String filename) throws IOException, JCryptUtil.Problem {
+        if (header.version >= 2) {
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+            JCryptIO.readFully(in, trailer, header.trailerOffset());
+            if (trailer.getInt(0) != crc) {
+                throw new JCryptUtil.Problem("Checksum of file \"" + filename + "\" invalid ");
+            }
+        }
+    }
+
+    /**
+     * Run a chunk task on the pool.
+     * @return the checksum of the cleartext of its chunks
+     */
+    private static int run(ChunkTask task) throws JCryptUtil.Problem {
+        try {
+            return POOL.invoke(task);
+        } catch (IllegalStateException e) {
+            // ForkJoinPool may rethrow a copy wrapping the worker's exception
+            Throwable cause = e;
+            while (cause.getCause() instanceof IllegalStateException) {
+                cause = cause.getCause();
+            }
+            throw new JCryptUtil.Problem(cause.getMessage());
+        }
+    }
+
+    /**
+     * Encrypts or decrypts a range of chunks, split in halves down to single chunks.
+     * Its result is the CRC32C of the range's cleartext, combined from the halves.
+     */
+    @SuppressWarnings("serial")
+    private static class ChunkTask extends RecursiveTask<Integer> {
+        private final Header header;
+        private final byte[] key;
+        private final FileChannel in;
+        private final FileChannel out;
+        private final byte[] sink;
+        private final boolean encrypt;
+        private final long from;
+        private final long to;
+
+        ChunkTask(Header header, byte[] key, FileChannel in, FileChannel out, byte[] sink, boolean encrypt, long from, long to) {
+            this.header = header;
+            this.key = key;
+            this.in = in;
+            this.out = out;
+            this.sink = sink;
+            this.encrypt = encrypt;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Integer compute() {
+            if (to - from > 1) {
+                long middle = from + (to - from) / 2;
+                ChunkTask first = new ChunkTask(header, key, in, out, sink, encrypt, from, middle);
+                ChunkTask second = new ChunkTask(header, key, in, out, sink, encrypt, middle, to);
+                invokeAll(first, second);
+                return JCryptChecksum.combine(first.join(), second.join(), header.cleartextSize(middle, to));
+            } else if (to > from) {
+                try {
+                    if (encrypt) {
+                        encryptChunk(header, key, in, out, from);
+                    } else if (sink != null) {
+                        byte[] clear = decryptChunk(header, key, in, from);
+                        System.arraycopy(clear, 0, sink, (int) (from * header.chunkSize), header.cleartextSize(from));
+                    } else {
+                        decryptChunk(header, key, in, out, from);
+                    }
+                    return BUFFERS.get().crc;
+                } catch (JCryptUtil.Problem e) {
+                    throw new IllegalStateException(e.getMessage());
+                } catch (Exception e) {
+                    throw new IllegalStateException((encrypt ? "Encryption" : "Decryption") + " of chunk " + from + " failed");
+                }
+            }
+            return 0; // no chunks: CRC32C of nothing
+        }
+    }
+
+    private static void encryptChunk(Header header, byte[] key, FileChannel in, FileChannel out, long i) throws Exception {
+        Buffers buffers = BUFFERS.get().ensure(header.chunkSize);
+        int n = header.cleartextSize(i);
+        ByteBuffer clear = ByteBuffer.wrap(buffers.clear, 0, n);
+        JCryptIO.readFully(in, clear, i * header.chunkSize);
+        Checksum crc = header.checksum();
+        crc.update(buffers.clear, 0, n);
+        buffers.crc = (int) crc.getValue();
+
+        byte[] record = buffers.record;
+        byte[] iv = new byte[8];
+        RANDOM.nextBytes(iv);
+        System.arraycopy(iv, 0, record, 0, 8);
+        ByteBuffer.wrap(record, 8, 4).putInt(buffers.crc);
+        Cipher cipher = buffers.cipher;
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, 0, 8, "DES"), new IvParameterSpec(iv));
+        int length = cipher.doFinal(buffers.clear, 0, n, record, CHUNK_OVERHEAD);
+        JCryptIO.writeFully(out, ByteBuffer.wrap(record, 0, CHUNK_OVERHEAD + length), header.offset(i));
+    }
+
+    private static void decryptChunk(Header header, byte[] key, FileChannel in, FileChannel out, long i) throws Exception {
+        byte[] clear = decryptChunk(header, key, in, i);
+        JCryptIO.writeFully(out, ByteBuffer.wrap(clear, 0, header.cleartextSize(i)), i * header.chunkSize);
+    }
+
+    /**
+     * Decrypt chunk i into the calling thread's cleartext buffer and verify its checksum
+     * (which is left in the thread's Buffers.crc).
+     * @return the buffer holding header.cleartextSize(i) bytes of cleartext
+     */
+    static byte[] decryptChunk(Header header, byte[] key, FileChannel in, long i) throws Exception {
+        Buffers buffers = BUFFERS.get().ensure(header.chunkSize);
+        int n = header.cleartextSize(i);
+        int size = CHUNK_OVERHEAD + Header.ciphertextSize(n);
+        byte[] record = buffers.record;
+        JCryptIO.readFully(in, ByteBuffer.wrap(record, 0, size), header.offset(i));
+        int checksum = ByteBuffer.wrap(record, 8, 4).getInt();
+        Cipher cipher = buffers.cipher;
+        cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, 0, 8, "DES"), new IvParameterSpec(record, 0, 8));
+        int length;
+        try {
+            length = cipher.doFinal(record, CHUNK_OVERHEAD, size - CHUNK_OVERHEAD, buffers.clear, 0);
+        } catch (Exception e) {
+            throw new JCryptUtil.Problem("Decryption failed ");
+        }
+        Checksum crc = header.checksum();
+        crc.update(buffers.clear, 0, length);
+        if (length != n || (int) crc.getValue() != checksum) {
+            throw new JCryptUtil.Problem("Checksum of chunk " + i + " invalid ");
+        }
+        buffers.crc = checksum;
+        return buffers.clear;
+    }
+
+    /** Per-thread cipher and chunk buffers, grown to the largest chunk size seen. */
+    private static final ThreadLocal<Buffers> BUFFERS = new ThreadLocal<Buffers>() {
+        @Override
+        protected Buffers initialValue() {
+            return new Buffers();
+        }
+    };
+
+    private static class Buffers {
+        byte[] clear = new byte[0];
+        byte[] record = new byte[0];
+        Cipher cipher;
+        int crc; // checksum of the last chunk encrypted or decrypted
+
+        Buffers ensure(int chunkSize) throws Exception {
+            if (cipher == null) {
+                cipher = Cipher.getInstance("DES/CBC/PKCS5Padding");
+            }
+            if (clear.length < chunkSize + 8) {
+                clear = new byte[chunkSize + 8];
+                record = new byte[CHUNK_OVERHEAD + Header.ciphertextSize(chunkSize)];
+            }
+            return this;
+        }
+    }
+}
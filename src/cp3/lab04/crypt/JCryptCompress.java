@@ -0,0 +1,154 @@
+package cp3.lab04.crypt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterOutputStream;
+
+/**
+ * Optional compression of the cleartext before it is encrypted (--compress).
+ * Text such as logs and CSV deflates 5-10x, which cuts the cipher work and the
+ * bytes written by as much. Data that is already compressed does not shrink,
+ * so the first block of every file is deflated as a sample, and a file whose
+ * sample does not shrink below MAX_RATIO is encrypted as it is.
+ *
+ * <p>Whether a file was deflated is recorded in its header (the checksum of
+ * the legacy format, the flags of the cipher suites' format), so decryption
+ * inflates it without being told.
+ */
+class JCryptCompress {
+
+    /** Bytes at the start of a file deflated to decide whether to compress it. */
+    static final int SAMPLE_SIZE = JCryptIO.BLOCK_SIZE;
+
+    /** Largest compressed size of the sample, relative to its size, for which a file is compressed. */
+    static final double MAX_RATIO = 0.9;
+
+    /**
+     * Check whether a file is worth compressing, by deflating its first block.
+     * @param filename the file
+     * @param level Deflater compression level (1-9)
+     */
+    static boolean worthCompressing(String filename, int level) throws JCryptUtil.Problem {
+        FileChannel in = JCryptIO.openForReading(filename);
+        byte[] sample = JCryptBufferPool.SHARED.array(SAMPLE_SIZE);
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(sample, 0, SAMPLE_SIZE);
+            JCryptIO.readFully(in, buf);
+            return worthCompressing(sample, buf.position(), level);
+        } catch (IOException e) {
+            throw new JCryptUtil.Problem("Cannot read from file \"" + filename + "\"");
+        } finally {
+            JCryptBufferPool.SHARED.release(sample);
+            JCryptIO.close(in);
+        }
+    }
+
+    /**
+     * Check whether data is worth compressing, by deflating (at most SAMPLE_SIZE bytes of) it.
+     * Deflating stops as soon as the output is too large.
+     */
+    static boolean worthCompressing(byte[] sample, int length, int level) {
+        length = Math.min(length, SAMPLE_SIZE);
+        if (length == 0) {
+            return false;
+        }
+        int limit = (int) (length * MAX_RATIO);
+        Deflater deflater = new Deflater(level);
+        byte[] out = JCryptBufferPool.SHARED.array(JCryptIO.BLOCK_SIZE);
+        try {
+            deflater.setInput(sample, 0, length);
+            deflater.finish();
+            int total = 0;
+            while (!deflater.finished() && total <= limit) {
+                total += deflater.deflate(out);
+            }
+            return total <= limit;
+        } finally {
+            JCryptBufferPool.SHARED.release(out);
+            deflater.end();
+        }
+    }
+
+    /**
+     * A channel of the deflated content of another channel.
+     * @param deflater to deflate with (to be ended by the caller)
+     */
+    static ReadableByteChannel deflating(ReadableByteChannel in, Deflater deflater) {
+        return Channels.newChannel(new DeflaterInputStream(Channels.newInputStream(in), deflater, JCryptIO.BLOCK_SIZE));
+    }
+
+    /**
+     * A channel that inflates what is written to it into another channel.
+     * Must be closed at the end, which checks that the deflated data was complete
+     * (but leaves the other channel open).
+     * @param inflater to inflate with (to be ended by the caller)
+     */
+    static WritableByteChannel inflating(WritableByteChannel out, Inflater inflater) {
+        InflaterOutputStream stream = new InflaterOutputStream(Channels.newOutputStream(out), inflater, JCryptIO.BLOCK_SIZE) {
+            @Override
+            public void close() throws IOException {
+                finish();
+                if (!inflater.finished()) {
+                    throw new IOException("Deflated data is truncated");
+                }
+            }
+        };
+        return Channels.newChannel(stream);
+    }
+
+    /**
+     * Deflate a whole array.
+     * @param level Deflater compression level (1-9)
+     */
+    static byte[] deflate(byte[] data, int length, int level) {
+        Deflater deflater = new Deflater(level);
+        byte[] block = JCryptBufferPool.SHARED.array(JCryptIO.BLOCK_SIZE);
+        try {
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 64);
+            while (!deflater.finished()) {
+                out.write(block, 0, deflater.deflate(block));
+            }
+            return out.toByteArray();
+        } finally {
+            JCryptBufferPool.SHARED.release(block);
+            deflater.end();
+        }
+    }
+
+    /**
+     * Inflate a whole array.
+     */
+    static byte[] inflate(byte[] data, int offset, int length) throws DataFormatException {
+        Inflater inflater = new Inflater();
+        byte[] block = JCryptBufferPool.SHARED.array(JCryptIO.BLOCK_SIZE);
+        try {
+            inflater.setInput(data, offset, length);
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE - 8, length * 3L));
+            while (!inflater.finished()) {
+                int n = inflater.inflate(block);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Deflated data is truncated");
+                }
+                out.write(block, 0, n);
+            }
+            if (inflater.getRemaining() > 0) {
+                throw new DataFormatException("Data after the end of the deflated data");
+            }
+            return out.toByteArray();
+        } finally {
+            JCryptBufferPool.SHARED.release(block);
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,494 @@
+package cp3.lab04.crypt;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Parallel password cracker.
+ * A candidate space (brute force over a charset, or a wordlist with rules) is
+ * divided into fixed-size chunks of positions which are split recursively over
+ * a work-stealing ForkJoinPool. Any number of encrypted files can be cracked
+ * in the same pass; all workers stop once every file has been decrypted to a
+ * cleartext with the expected checksum.
+ */
+public class JCryptCracker {
+
+    /** Default characters to guess passwords from. */
+    public static final String DEFAULT_CHARSET = "abcdefghijklmnopqrstuvwxyz0123456789";
+
+    /** Interval between progress reports, in nanoseconds. */
+    private static final long REPORT_INTERVAL = 5_000_000_000L;
+
+    /**
+     * A set of candidate passwords, addressed by position (0..size-1).
+     * Candidates are produced into reusable byte arrays, not allocated one by one.
+     */
+    public interface Space {
+        /** Number of positions in the space. */
+        long size();
+
+        /** Number of positions searched as one unit of work. */
+        long grain();
+
+        /**
+         * Generate the candidates at positions from..to-1 and pass them to the tester.
+         * @return true if the tester asked to stop
+         */
+        boolean search(long from, long to, Tester tester) throws JCryptUtil.Problem;
+
+        /** Description identifying the space, used to match checkpoints to searches. */
+        String describe();
+    }
+
+    /**
+     * Receives candidate passwords from a Space.
+     */
+    public interface Tester {
+        /**
+         * @param password candidate password as ASCII bytes (only valid during the call)
+         * @param length number of bytes of the candidate
+         * @return true if the search should stop
+         */
+        boolean test(byte[] password, int length);
+    }
+
+    private final Space space;
+    private final int threads;
+    private final long chunks;
+
+    private final LongAdder tried = new LongAdder();
+    private JCryptCheckpoint checkpoint;
+    private String checkpointFile;
+    private long checkpointInterval;
+    private String[] names;
+    private JCryptUtil.EncryptedData[] targets;
+    private AtomicReferenceArray<Result> results;
+    private volatile int[] active; // indices of the targets not solved yet
+    private volatile long lastReport = System.nanoTime();
+
+    /**
+     * @param space candidate passwords to try
+     * @param threads number of cracking threads, or 0 for one per core
+     */
+    public JCryptCracker(Space space, int threads) {
+        this.space = space;
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        this.chunks = (space.size() + space.grain() - 1) / space.grain();
+    }
+
+    /**
+     * Periodically save the progress of the search, so it can be resumed.
+     * Checkpoints are written by a separate thread, not by the cracking workers.
+     * @param resume checkpoint of an earlier run of the same search to continue, or null
+     * @param filename file to save checkpoints to
+     * @param seconds interval between checkpoints
+     */
+    public void checkpoint(JCryptCheckpoint resume, String filename, long seconds) throws JCryptUtil.Problem {
+        if (resume != null) {
+            resume.validate(space.describe(), chunks);
+            checkpoint = resume;
+            JCryptLog.info("Resuming: " + resume.finishedChunks() + " of " + chunks + " chunks already searched");
+        } else {
+            checkpoint = new JCryptCheckpoint(space.describe(), chunks);
+        }
+        checkpointFile = filename;
+        checkpointInterval = seconds;
+    }
+
+    /**
+     * Search for the password of the encrypted data.
+     * @param ciphertext data to crack
+     * @return the decrypted data
+     */
+    public byte[] crack(JCryptUtil.EncryptedData ciphertext) throws JCryptUtil.Problem {
+        Result found = crackAll(new String[] { "data" }, new JCryptUtil.EncryptedData[] { ciphertext })[0];
+        if (found == null) {
+            throw new JCryptUtil.Problem("Password not found");
+        }
+        JCryptLog.info("Password found: " + found.password);
+        return found.cleartext;
+    }
+
+    /**
+     * Search for the passwords of several encrypted files in one pass:
+     * each candidate key is derived once and tried on every file not solved yet.
+     * The search ends when every file is solved or the space is exhausted.
+     * @param filenames names of the files (to identify them in checkpoints)
+     * @param ciphertexts data to crack
+     * @return for each file, its password and decrypted data, or null if not found
+     */
+    public Result[] crackAll(String[] filenames, JCryptUtil.EncryptedData[] ciphertexts) throws JCryptUtil.Problem {
+        for (JCryptUtil.EncryptedData ciphertext : ciphertexts) {
+            JCryptUtil.Guesser.check(ciphertext);
+        }
+        names = filenames;
+        targets = ciphertexts;
+        if (checkpoint != null) {
+            Map<String, String> digests = new HashMap<>();
+            for (int i = 0; i < ciphertexts.length; i++) {
+                digests.put(filenames[i], digest(ciphertexts[i]));
+            }
+            checkpoint.targets(digests);
+        }
+        results = new AtomicReferenceArray<>(ciphertexts.length);
+        active = new int[0];
+        int[] all = new int[ciphertexts.length];
+        int unsolved = 0;
+        for (int i = 0; i < ciphertexts.length; i++) {
+            if (!resumeSolved(i)) {
+                all[unsolved++] = i;
+            }
+        }
+        active = Arrays.copyOf(all, unsolved);
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        ScheduledExecutorService saver = null;
+        if (checkpoint != null) {
+            saver = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "checkpoint");
+                t.setDaemon(true);
+                return t;
+            });
+            saver.scheduleWithFixedDelay(this::saveCheckpoint, checkpointInterval, checkpointInterval, TimeUnit.SECONDS);
+        }
+        long starttime = System.nanoTime();
+        try {
+            pool.invoke(new ChunkTask(0, chunks, starttime));
+        } catch (IllegalStateException e) {
+            // ForkJoinPool may rethrow a copy wrapping the worker's exception
+            Throwable cause = e;
+            while (cause.getCause() instanceof IllegalStateException) {
+                cause = cause.getCause();
+            }
+            throw new JCryptUtil.Problem(cause.getMessage());
+        } finally {
+            pool.shutdownNow();
+            if (saver != null) {
+                saver.shutdownNow();
+                saveCheckpoint();
+            }
+            if (space instanceof Closeable) {
+                try { ((Closeable) space).close(); } catch (IOException e) {}
+            }
+        }
+        double seconds = (System.nanoTime() - starttime) / 1000000000.0;
+        long count = tried.sum();
+        JCryptLog.info("Tried " + count + " candidates on " + ciphertexts.length + " files in " + seconds + "s ("
+                + (long) (count / Math.max(seconds, 1e-9)) + " candidates/s on " + threads + " threads)");
+        Result[] found = new Result[ciphertexts.length];
+        for (int i = 0; i < found.length; i++) {
+            found[i] = results.get(i);
+        }
+        return found;
+    }
+
+    /**
+     * Number of candidates tried so far.
+     */
+    public long tried() {
+        return tried.sum();
+    }
+
+    /**
+     * If a file was solved before the session was resumed, decrypt it with its known password.
+     * @return true if the file is solved
+     */
+    private boolean resumeSolved(int target) throws JCryptUtil.Problem {
+        String password = checkpoint == null ? null : checkpoint.password(names[target]);
+        if (password == null) {
+            return false;
+        }
+        JCryptUtil.Guesser guesser = GUESSERS.get();
+        byte[] cleartext = guesser.derive(password.toCharArray()) ? guesser.attempt(targets[target]) : null;
+        if (cleartext == null) {
+            return false; // not its password after all: crack it again
+        }
+        results.set(target, new Result(password, cleartext));
+        return true;
+    }
+
+    /**
+     * SHA-256 of encrypted data, in hex, to tell in a checkpoint whether a file is the same.
+     */
+    private static String digest(JCryptUtil.EncryptedData ciphertext) throws JCryptUtil.Problem {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new JCryptUtil.Problem("SHA-256 not available");
+        }
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            digest.update((byte) (ciphertext.checksum >>> shift));
+        }
+        digest.update(ciphertext.content);
+        StringBuilder s = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            s.append(String.format("%02x", b));
+        }
+        return s.toString();
+    }
+
+    private void saveCheckpoint() {
+        try {
+            checkpoint.save(checkpointFile);
+        } catch (JCryptUtil.Problem e) {
+            JCryptLog.error("ERROR: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Record a solved file and drop it from the active set.
+     */
+    private synchronized void solved(int target, String password, byte[] cleartext) {
+        if (!results.compareAndSet(target, null, new Result(password, cleartext))) {
+            return;
+        }
+        if (checkpoint != null) {
+            checkpoint.solve(names[target], password);
+        }
+        int[] current = active;
+        int[] remaining = new int[current.length - 1];
+        int n = 0;
+        for (int t : current) {
+            if (t != target) {
+                remaining[n++] = t;
+            }
+        }
+        active = remaining;
+    }
+
+    /**
+     * A range of chunks, split in halves until it is a single chunk.
+     */
+    @SuppressWarnings("serial")
+    private class ChunkTask extends RecursiveAction {
+        private final long from;
+        private final long to;
+        private final long starttime;
+
+        ChunkTask(long from, long to, long starttime) {
+            this.from = from;
+            this.to = to;
+            this.starttime = starttime;
+        }
+
+        @Override
+        protected void compute() {
+            if (active.length == 0 || from >= to) {
+                return;
+            }
+            if (checkpoint != null && checkpoint.isFinished(from, to)) {
+                return; // searched before the session was resumed
+            }
+            if (to - from > 1) {
+                long middle = from + (to - from) / 2;
+                invokeAll(new ChunkTask(from, middle, starttime),
+                          new ChunkTask(middle, to, starttime));
+                return;
+            }
+            try {
+                long start = from * space.grain();
+                boolean stopped = space.search(start, Math.min(start + space.grain(), space.size()), new Worker(GUESSERS.get()));
+                if (!stopped && checkpoint != null) {
+                    checkpoint.finish(from);
+                }
+            } catch (JCryptUtil.Problem e) {
+                throw new IllegalStateException(e.getMessage());
+            }
+            report(starttime);
+        }
+    }
+
+    /**
+     * Derives each candidate's key once and tries it on every active file.
+     */
+    private class Worker implements Tester {
+        private final JCryptUtil.Guesser guesser;
+
+        Worker(JCryptUtil.Guesser guesser) {
+            this.guesser = guesser;
+        }
+
+        @Override
+        public boolean test(byte[] password, int length) {
+            tried.increment();
+            int[] current = active;
+            if (current.length == 0) {
+                return true;
+            }
+            if (guesser.derive(password, length)) {
+                for (int target : current) {
+                    byte[] cleartext = guesser.attempt(targets[target]);
+                    if (cleartext != null) {
+                        solved(target, new String(password, 0, length), cleartext);
+                    }
+                }
+            }
+            return active.length == 0;
+        }
+    }
+
+    /**
+     * Print candidates/s every REPORT_INTERVAL (called by whichever worker notices first).
+     */
+    private void report(long starttime) {
+        long now = System.nanoTime();
+        long last = lastReport;
+        if (now - last >= REPORT_INTERVAL) {
+            synchronized (this) {
+                if (lastReport != last) {
+                    return;
+                }
+                lastReport = now;
+            }
+            long count = tried.sum();
+            JCryptLog.info("... " + count + " candidates tried ("
+                    + (long) (count / ((now - starttime) / 1000000000.0)) + " candidates/s), "
+                    + (targets.length - active.length) + " of " + targets.length + " files solved");
+        }
+    }
+
+    /** One Guesser per worker thread. */
+    private static final ThreadLocal<JCryptUtil.Guesser> GUESSERS = new ThreadLocal<JCryptUtil.Guesser>() {
+        @Override
+        protected JCryptUtil.Guesser initialValue() {
+            try {
+                return new JCryptUtil.Guesser();
+            } catch (JCryptUtil.Problem e) {
+                throw new IllegalStateException(e.getMessage());
+            }
+        }
+    };
+
+    /**
+     * A cracked file: its password and decrypted data.
+     */
+    public static class Result {
+        public final String password;
+        public final byte[] cleartext;
+
+        Result(String password, byte[] cleartext) {
+            this.password = password;
+            this.cleartext = cleartext;
+        }
+    }
+
+    /**
+     * Every string over a charset with a length in a given range.
+     * Candidates are numbered by length, then in odometer order.
+     */
+    public static class BruteForce implements Space {
+        private final byte[] charset;
+        private final int minLength;
+        private final int maxLength;
+        private final long[] lengthStart; // number of the first candidate of each length
+        private final long size;
+
+        /**
+         * @param charset characters that may appear in the password (printable ASCII)
+         * @param minLength shortest password length to try
+         * @param maxLength longest password length to try
+         */
+        public BruteForce(String charset, int minLength, int maxLength) throws JCryptUtil.Problem {
+            if (charset.isEmpty() || minLength < 1 || maxLength < minLength) {
+                throw new JCryptUtil.Problem("Invalid password search space");
+            }
+            this.charset = new byte[charset.length()];
+            for (int i = 0; i < charset.length(); i++) {
+                char c = charset.charAt(i);
+                if (c < 0x20 || c > 0x7e) {
+                    throw new JCryptUtil.Problem("Charset may only contain printable ASCII characters");
+                }
+                this.charset[i] = (byte) c;
+            }
+            this.minLength = minLength;
+            this.maxLength = maxLength;
+            this.lengthStart = new long[maxLength + 2];
+            long count = 1;
+            long total = 0;
+            for (int length = 1; length <= maxLength; length++) {
+                if (count > Long.MAX_VALUE / charset.length()) {
+                    throw new JCryptUtil.Problem("Password search space too large");
+                }
+                count *= charset.length();
+                if (length >= minLength) {
+                    lengthStart[length] = total;
+                    if (total > Long.MAX_VALUE - count) {
+                        throw new JCryptUtil.Problem("Password search space too large");
+                    }
+                    total += count;
+                }
+            }
+            lengthStart[maxLength + 1] = total;
+            this.size = total;
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public long grain() {
+            return 2048;
+        }
+
+        @Override
+        public String describe() {
+            return "brute-force charset=" + new String(charset) + " length=" + minLength + "-" + maxLength;
+        }
+
+        @Override
+        public boolean search(long from, long to, Tester tester) {
+            int length = minLength;
+            while (lengthStart[length + 1] <= from) {
+                length++;
+            }
+            byte[] guess = new byte[maxLength];
+            int[] digits = new int[maxLength];
+            spell(from - lengthStart[length], guess, digits, length);
+            for (long n = from; n < to; n++) {
+                if (n == lengthStart[length + 1]) { // next length: restart at "aa..a"
+                    length++;
+                    spell(0, guess, digits, length);
+                }
+                if (tester.test(guess, length)) {
+                    return true;
+                }
+                // advance the odometer to the next candidate of this length
+                for (int i = length - 1; i >= 0; i--) {
+                    if (++digits[i] < charset.length) {
+                        guess[i] = charset[digits[i]];
+                        break;
+                    }
+                    digits[i] = 0;
+                    guess[i] = charset[0];
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Fill guess/digits with the n-th candidate of the given length.
+         */
+        private void spell(long n, byte[] guess, int[] digits, int length) {
+            for (int i = length - 1; i >= 0; i--) {
+                digits[i] = (int) (n % charset.length);
+                guess[i] = charset[digits[i]];
+                n /= charset.length;
+            }
+        }
+    }
+}
@@ -43,6 +43,7 @@ public class JCryptGUI extends JFrame {
     private AtomicLong bytesProcessed = new AtomicLong(0);
     private AtomicInteger activeThreads = new AtomicInteger(0);
     private ExecutorService executorService;
+    private volatile JCryptVirtualThreads virtualThreads;
     
     public JCryptGUI() {
         setTitle("File Encryption/Decryption Tool");
@@ -64,6 +65,9 @@ public class JCryptGUI extends JFrame {
         
         // Set modern styling
         setModernStyling();
+
+        // Show the messages of worker threads (see JCryptLog) in the log area
+        JCryptLog.addSink(this::showLog);
     }
     
     private void setModernStyling() {
@@ -113,7 +117,9 @@ public class JCryptGUI extends JFrame {
             "Multiple Threads with Atomic Counter",
             "Thread Pool with CountDownLatch",
             "Thread Pool with CyclicBarrier",
-            "Thread Pool with Lock"
+            "Thread Pool with Lock",
+            "Thread Pool, Largest Files First",
+            "Virtual Threads for I/O, Pool for Cipher"
         };
         implementationCombo = new JComboBox<>(implementations);
         
@@ -335,6 +341,12 @@ public class JCryptGUI extends JFrame {
                     case 4: // Thread Pool with Lock
                         processWithThreadPoolAndLock(opts);
                         break;
+                    case 5: // Thread Pool, Largest Files First
+                        processWithLargestFirst(opts);
+                        break;
+                    case 6: // Virtual Threads for I/O, Pool for Cipher
+                        processWithVirtualThreads(opts);
+                        break;
                 }
                 
                 if (!shouldStop) {
@@ -346,6 +358,7 @@ public class JCryptGUI extends JFrame {
                 e.printStackTrace();
             } finally {
                 isProcessing = false;
+                JCryptUtil.clearKeyCache(); // wipe key material cached for this run
                 SwingUtilities.invokeLater(() -> {
                     startButton.setEnabled(true);
                     stopButton.setEnabled(false);
@@ -373,6 +386,9 @@ public class JCryptGUI extends JFrame {
         if (executorService != null) {
             executorService.shutdownNow();
         }
+        if (virtualThreads != null) {
+            virtualThreads.shutdown();
+        }
         updateStatus("Stopping...");
     }
     
@@ -404,9 +420,21 @@ public class JCryptGUI extends JFrame {
     }
     
     private void updateStatus(String message) {
+        JCryptLog.info(message);
+    }
+
+    /**
+     * Append a batch of log messages to the log area, with one update of the UI per batch.
+     */
+    private void showLog(List<JCryptLog.Entry> batch) {
+        StringBuilder text = new StringBuilder();
+        for (JCryptLog.Entry entry : batch) {
+            text.append(entry.message).append('\n');
+        }
+        String last = batch.get(batch.size() - 1).message;
         SwingUtilities.invokeLater(() -> {
-            statusLabel.setText(message);
-            logArea.append(message + "\n");
+            statusLabel.setText(last);
+            logArea.append(text.toString());
         });
     }
     
@@ -546,6 +574,60 @@ public class JCryptGUI extends JFrame {
         executorService.awaitTermination(1, TimeUnit.HOURS);
     }
     
+    private void processWithLargestFirst(JCryptUtil.Options opts) throws Exception {
+        int numThreads = Math.min(opts.threads, opts.filenames.length);
+        executorService = Executors.newFixedThreadPool(numThreads);
+        JCryptScheduler scheduler = new JCryptScheduler(opts, numThreads);
+        updateStatus(String.format("Scheduling largest files first (predicted imbalance %.1f%%)", scheduler.imbalance() * 100));
+        
+        for (int i = 0; i < numThreads && !shouldStop; i++) {
+            final int worker = i;
+            executorService.submit(() -> {
+                int fileIndex;
+                while (!shouldStop && (fileIndex = scheduler.next(worker)) >= 0) {
+                    try {
+                        activeThreads.incrementAndGet();
+                        JCrypt.process(opts, fileIndex);
+                        bytesProcessed.addAndGet(new File(opts.filenames[fileIndex]).length());
+                    } catch (Exception e) {
+                        updateStatus("Error processing file " + opts.filenames[fileIndex] + ": " + e.getMessage());
+                    } finally {
+                        activeThreads.decrementAndGet();
+                    }
+                }
+            });
+        }
+        
+        executorService.shutdown();
+        executorService.awaitTermination(1, TimeUnit.HOURS);
+    }
+    
+    private void processWithVirtualThreads(JCryptUtil.Options opts) throws Exception {
+        virtualThreads = new JCryptVirtualThreads(opts, 0);
+        updateStatus("Using " + (virtualThreads.isVirtual() ? "virtual" : "platform") + " threads for I/O, "
+            + virtualThreads.cpuThreads() + " cipher threads");
+        try {
+            virtualThreads.run(new JCryptVirtualThreads.Listener() {
+                @Override
+                public void started(int index) {
+                    activeThreads.incrementAndGet();
+                }
+                
+                @Override
+                public void finished(int index, String error) {
+                    activeThreads.decrementAndGet();
+                    if (error != null) {
+                        updateStatus("Error processing file " + opts.filenames[index] + ": " + error);
+                    } else {
+                        bytesProcessed.addAndGet(new File(opts.filenames[index]).length());
+                    }
+                }
+            });
+        } finally {
+            virtualThreads = null;
+        }
+    }
+    
     public static void main(String[] args) {
         SwingUtilities.invokeLater(() -> {
             JCryptGUI gui = new JCryptGUI();
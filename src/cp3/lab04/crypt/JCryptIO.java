@@ -0,0 +1,161 @@
+package cp3.lab04.crypt;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * FileChannel helpers for the I/O paths of JCrypt, which move data in direct
+ * ByteBuffers from JCryptBufferPool. Direct buffers let FileChannel and
+ * Cipher.update(ByteBuffer, ByteBuffer) work without the extra copy the JDK makes
+ * for heap buffers; since they are expensive to allocate, they are pooled and
+ * reused across files.
+ * Writes are never forced to disk (no FileChannel.force): the OS flushes them.
+ */
+class JCryptIO {
+
+    /** Size of the blocks moved between files and ciphers. */
+    static final int BLOCK_SIZE = 64 * 1024;
+
+    /**
+     * Take a cleared buffer of at least the given capacity (limit set to it) from the shared pool.
+     */
+    static ByteBuffer acquire(int capacity) {
+        return JCryptBufferPool.SHARED.buffer(capacity);
+    }
+
+    /**
+     * Return a buffer obtained from acquire() to the pool.
+     */
+    static void release(ByteBuffer buf) {
+        JCryptBufferPool.SHARED.release(buf);
+    }
+
+    static FileChannel openForReading(String filename) throws JCryptUtil.Problem {
+        try {
+            return FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            throw new JCryptUtil.Problem("File \"" + filename + "\" not found");
+        } catch (IOException e) {
+            throw new JCryptUtil.Problem("Cannot read from file \"" + filename + "\"");
+        }
+    }
+
+    static FileChannel openForWriting(String filename) throws JCryptUtil.Problem {
+        try {
+            return FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE, StandardOpenOption.READ);
+        } catch (IOException e) {
+            throw new JCryptUtil.Problem("Cannot write to file \"" + filename + "\"");
+        }
+    }
+
+    /**
+     * Fill the buffer from the channel's current position.
+     * @return false if the end of the file was reached first
+     */
+    static boolean readFully(FileChannel in, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (in.read(buf) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Fill the buffer from the given file position.
+     */
+    static void readFully(FileChannel in, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int read = in.read(buf, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Write all of the buffers at the channel's current position (gathering write).
+     */
+    static void writeFully(FileChannel out, ByteBuffer... bufs) throws IOException {
+        ByteBuffer last = bufs[bufs.length - 1];
+        while (last.hasRemaining()) {
+            out.write(bufs);
+        }
+    }
+
+    /**
+     * Write all of the buffer at the given file position.
+     */
+    static void writeFully(FileChannel out, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            position += out.write(buf, position);
+        }
+    }
+
+    /**
+     * Fill a byte array from the channel through a direct block buffer. Bytes already
+     * remaining in the block (e.g. after a header was taken from it) are used first.
+     * Reading through a bounded block avoids the temporary direct buffer of the
+     * whole array size that FileChannel would allocate for a heap buffer.
+     */
+    static void read(FileChannel in, ByteBuffer block, byte[] dst) throws IOException {
+        read(in, block, dst, dst.length);
+    }
+
+    /**
+     * Fill the first length bytes of a byte array, as read(in, block, dst).
+     */
+    static void read(FileChannel in, ByteBuffer block, byte[] dst, int length) throws IOException {
+        int off = 0;
+        while (true) {
+            int n = Math.min(block.remaining(), length - off);
+            block.get(dst, off, n);
+            off += n;
+            if (off == length) {
+                return;
+            }
+            block.clear();
+            block.limit(Math.min(block.capacity(), length - off));
+            if (!readFully(in, block)) {
+                throw new EOFException();
+            }
+            block.flip();
+        }
+    }
+
+    /**
+     * Write a byte array to the channel through a direct block buffer. Bytes already
+     * put into the block (e.g. a header) are written together with the first block.
+     */
+    static void write(FileChannel out, ByteBuffer block, byte[] src) throws IOException {
+        write(out, block, src, src.length);
+    }
+
+    /**
+     * Write the first length bytes of a byte array, as write(out, block, src).
+     */
+    static void write(FileChannel out, ByteBuffer block, byte[] src, int length) throws IOException {
+        int off = 0;
+        do {
+            int n = Math.min(block.remaining(), length - off);
+            block.put(src, off, n);
+            off += n;
+            block.flip();
+            writeFully(out, block);
+            block.clear();
+        } while (off < length);
+    }
+
+    static void close(FileChannel channel) {
+        if (channel != null) {
+            try { channel.close(); } catch (IOException e) {}
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package cp3.lab04.crypt;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.PBEParameterSpec;
+import javax.security.auth.DestroyFailedException;
+
+/**
+ * Cache of password-based keys and initialised Cipher objects, so that a batch
+ * of files sharing one password only pays for the key setup once.
+ * Derived keys are shared between threads in a bounded LRU map, while each
+ * thread keeps its own small map of ready-to-use Cipher objects (a Cipher is
+ * not thread-safe, but returns to its initialised state after doFinal).
+ * The PBKDF2 master keys of the AES suites have an LRU map of their own, so
+ * they and the DES keys do not evict each other. A master key is derived
+ * outside the map's lock, by the first thread that asks for it; other threads
+ * asking for the same key wait for that derivation, while lookups of other
+ * keys, and derivations for other salts, go ahead.
+ * Key material of evicted entries is zeroed.
+ */
+class JCryptKeyCache {
+
+    /** The cache used by JCryptUtil.makeCipher and JCryptSuite. */
+    static final JCryptKeyCache SHARED = new JCryptKeyCache(16, 4);
+
+    private static final String PBKDF2 = "PBKDF2WithHmacSHA256";
+
+    private final int capacity;
+    private final int ciphersPerThread;
+    private volatile int generation = 0;
+
+    private final LinkedHashMap<CacheKey, SecretKey> keys;
+    private final LinkedHashMap<CacheKey, FutureTask<SecretKey>> masterKeys;
+    private final ThreadLocal<ThreadCiphers> ciphers = new ThreadLocal<ThreadCiphers>() {
+        @Override
+        protected ThreadCiphers initialValue() {
+            return new ThreadCiphers();
+        }
+    };
+
+    /**
+     * @param capacity maximum number of derived keys shared by all threads (and of PBKDF2 master keys)
+     * @param ciphersPerThread maximum number of Cipher objects kept by each thread
+     */
+    JCryptKeyCache(int capacity, int ciphersPerThread) {
+        this.capacity = capacity;
+        this.ciphersPerThread = ciphersPerThread;
+        this.keys = new LinkedHashMap<CacheKey, SecretKey>(capacity * 2, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<CacheKey, SecretKey> eldest) {
+                if (size() > JCryptKeyCache.this.capacity) {
+                    destroy(eldest.getKey(), eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+        this.masterKeys = new LinkedHashMap<CacheKey, FutureTask<SecretKey>>(capacity * 2, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<CacheKey, FutureTask<SecretKey>> eldest) {
+                if (size() > JCryptKeyCache.this.capacity) {
+                    destroy(eldest.getKey(), eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Get an initialised Cipher for the calling thread.
+     * The password array is not retained; callers may clear it afterwards.
+     * @param algorithm PBE algorithm name, e.g. PBEWithMD5AndDES
+     * @param password with which to encrypt/decrypt
+     * @param opmode Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE expected
+     * @param params salt and iteration count
+     * @return Cipher object owned by the calling thread
+     */
+    Cipher cipher(String algorithm, char[] password, int opmode, PBEParameterSpec params)
+            throws GeneralSecurityException {
+        ThreadCiphers local = ciphers.get();
+        if (local.generation != generation) {
+            local.clear();
+            local.generation = generation;
+        }
+        CacheKey probe = new CacheKey(algorithm, password, opmode, params.getSalt(), params.getIterationCount());
+        Cipher cipher = local.get(probe);
+        if (cipher == null) {
+            cipher = Cipher.getInstance(algorithm);
+            cipher.init(opmode, key(probe), params);
+            local.put(probe.copy(), cipher);
+        }
+        return cipher;
+    }
+
+    /**
+     * Forget the calling thread's Cipher for these parameters,
+     * e.g. after it was left in an unknown state by a failed operation.
+     */
+    void discard(String algorithm, char[] password, int opmode, PBEParameterSpec params) {
+        CacheKey probe = new CacheKey(algorithm, password, opmode, params.getSalt(), params.getIterationCount());
+        ciphers.get().remove(probe);
+    }
+
+    /**
+     * Drop and zero all cached keys; thread-local Ciphers are dropped
+     * the next time their owning thread uses the cache.
+     */
+    void clear() {
+        synchronized (keys) {
+            for (Map.Entry<CacheKey, SecretKey> e : keys.entrySet()) {
+                destroy(e.getKey(), e.getValue());
+            }
+            keys.clear();
+            generation++;
+        }
+        synchronized (masterKeys) {
+            for (Map.Entry<CacheKey, FutureTask<SecretKey>> e : masterKeys.entrySet()) {
+                destroy(e.getKey(), e.getValue());
+            }
+            masterKeys.clear();
+        }
+        ciphers.get().clear();
+    }
+
+    /**
+     * Get the key that PBKDF2 (HMAC-SHA256) derives from a password and salt,
+     * deriving it only the first time (see JCryptSuite).
+     * The password array is not retained; callers may clear it afterwards.
+     * @param password the password
+     * @param salt the salt
+     * @param iterations PBKDF2 iteration count
+     * @param length key length in bytes
+     * @return a copy of the key bytes, which the caller should zero after use
+     */
+    byte[] pbkdf2(char[] password, byte[] salt, int iterations, int length) throws GeneralSecurityException {
+        CacheKey probe = new CacheKey(PBKDF2, password, length, salt, iterations); // (the mode slot holds the length)
+        FutureTask<SecretKey> derivation;
+        boolean first = false;
+        synchronized (masterKeys) {
+            derivation = masterKeys.get(probe);
+            if (derivation == null) {
+                derivation = new FutureTask<>(() -> {
+                    PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, length * 8);
+                    try {
+                        return SecretKeyFactory.getInstance(PBKDF2).generateSecret(spec);
+                    } finally {
+                        spec.clearPassword();
+                    }
+                });
+                masterKeys.put(probe.copy(), derivation);
+                first = true;
+            }
+        }
+        if (first) {
+            derivation.run(); // on this thread, outside the lock
+        }
+        try {
+            return derivation.get().getEncoded();
+        } catch (ExecutionException e) {
+            synchronized (masterKeys) { // let the next caller try again
+                if (masterKeys.get(probe) == derivation) {
+                    masterKeys.remove(probe);
+                }
+            }
+            if (e.getCause() instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) e.getCause();
+            }
+            throw new GeneralSecurityException("PBKDF2 failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GeneralSecurityException("Interrupted while waiting for a key");
+        }
+    }
+
+    private SecretKey key(CacheKey probe) throws GeneralSecurityException {
+        synchronized (keys) {
+            SecretKey key = keys.get(probe);
+            if (key == null) {
+                PBEKeySpec spec = new PBEKeySpec(probe.password);
+                key = SecretKeyFactory.getInstance(probe.algorithm).generateSecret(spec);
+                spec.clearPassword();
+                keys.put(probe.copy(), key);
+            }
+            return key;
+        }
+    }
+
+    private static void destroy(CacheKey entry, FutureTask<SecretKey> derivation) {
+        if (derivation.isDone()) {
+            try {
+                destroy(entry, derivation.get());
+                return;
+            } catch (ExecutionException | InterruptedException e) {
+                // failed: there is no key to destroy
+            }
+        }
+        entry.wipe(); // (a derivation still running holds its caller's password, not this copy)
+    }
+
+    private static void destroy(CacheKey entry, SecretKey key) {
+        entry.wipe();
+        if (key != null && !key.isDestroyed()) {
+            try {
+                key.destroy();
+            } catch (DestroyFailedException e) {
+                // provider keeps its own copy; nothing more we can do
+            }
+        }
+    }
+
+    /**
+     * Per-thread LRU of initialised Cipher objects.
+     */
+    @SuppressWarnings("serial")
+    private class ThreadCiphers extends LinkedHashMap<CacheKey, Cipher> {
+        int generation = JCryptKeyCache.this.generation;
+
+        ThreadCiphers() {
+            super(ciphersPerThread * 2, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<CacheKey, Cipher> eldest) {
+            if (size() > ciphersPerThread) {
+                eldest.getKey().wipe();
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void clear() {
+            for (CacheKey e : keySet()) {
+                e.wipe();
+            }
+            super.clear();
+        }
+
+        @Override
+        public Cipher remove(Object key) {
+            for (CacheKey e : keySet()) {
+                if (e.equals(key)) {
+                    Cipher cipher = super.remove(e);
+                    e.wipe();
+                    return cipher;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Cache key: (algorithm, password, mode, salt, iteration count).
+     * Probes wrap the caller's arrays; stored entries own copies.
+     */
+    private static final class CacheKey {
+        final String algorithm;
+        final char[] password;
+        final int opmode;
+        final byte[] salt;
+        final int iterations;
+        final int hash;
+
+        CacheKey(String algorithm, char[] password, int opmode, byte[] salt, int iterations) {
+            this.algorithm = algorithm;
+            this.password = password;
+            this.opmode = opmode;
+            this.salt = salt;
+            this.iterations = iterations;
+            int h = algorithm.hashCode();
+            h = 31 * h + Arrays.hashCode(password);
+            h = 31 * h + opmode;
+            h = 31 * h + Arrays.hashCode(salt);
+            this.hash = 31 * h + iterations;
+        }
+
+        CacheKey copy() {
+            return new CacheKey(algorithm, password.clone(), opmode, salt.clone(), iterations);
+        }
+
+        void wipe() {
+            Arrays.fill(password, '\0');
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey other = (CacheKey) o;
+            return hash == other.hash && opmode == other.opmode && iterations == other.iterations
+                    && algorithm.equals(other.algorithm) && Arrays.equals(password, other.password)
+                    && Arrays.equals(salt, other.salt);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package cp3.lab04.crypt;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous log for the messages of worker threads ("Encrypting ...", errors).
+ * Workers never block on a PrintStream lock: a message claims a slot of a ring
+ * buffer with one atomic increment and is published into it; a single daemon
+ * thread drains the ring in batches and hands each batch to the sinks (by
+ * default, stdout for INFO and below, stderr for WARN and above), flushing once
+ * per batch. If the ring is full, writers wait for the drain thread to catch up.
+ *
+ * <p>Messages from one thread appear in the order they were logged. Call flush()
+ * before output that must come after everything logged so far.
+ */
+class JCryptLog {
+
+    /** Severity of a message. */
+    enum Level { DEBUG, INFO, WARN, ERROR }
+
+    /** A logged message. */
+    static class Entry {
+        final Level level;
+        final String message;
+
+        Entry(Level level, String message) {
+            this.level = level;
+            this.message = message;
+        }
+    }
+
+    /**
+     * Receives batches of messages, on the log's drain thread.
+     */
+    interface Sink {
+        void write(List<Entry> batch);
+    }
+
+    /** Slots in the ring (a power of two). */
+    static final int CAPACITY = 8192;
+    /** Most messages handed to the sinks at once. */
+    static final int MAX_BATCH = 1024;
+
+    private static final int MASK = CAPACITY - 1;
+    private static final AtomicReferenceArray<Entry> RING = new AtomicReferenceArray<>(CAPACITY);
+    private static final AtomicLong CLAIMED = new AtomicLong(); // next sequence to claim
+    private static volatile long drained = 0; // every sequence below this has been written to the sinks
+    private static volatile Level threshold = Level.INFO;
+    private static volatile boolean consoleStderrOnly = false;
+    private static final List<Sink> SINKS = new CopyOnWriteArrayList<>();
+    private static final Thread DRAIN;
+
+    /** Writes to System.out/System.err, with one flush per batch. */
+    static final Sink CONSOLE = batch -> {
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+        boolean outUsed = false;
+        boolean errUsed = false;
+        for (Entry entry : batch) {
+            if (consoleStderrOnly || entry.level.compareTo(Level.WARN) >= 0) {
+                err.println(entry.message);
+                errUsed = true;
+            } else {
+                out.println(entry.message);
+                outUsed = true;
+            }
+        }
+        if (outUsed) {
+            out.flush();
+        }
+        if (errUsed) {
+            err.flush();
+        }
+    };
+
+    static {
+        SINKS.add(CONSOLE);
+        DRAIN = new Thread(JCryptLog::drainLoop, "JCrypt-log");
+        DRAIN.setDaemon(true);
+        DRAIN.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(JCryptLog::flush, "JCrypt-log-flush"));
+    }
+
+    static void debug(String message) {
+        log(Level.DEBUG, message);
+    }
+
+    static void info(String message) {
+        log(Level.INFO, message);
+    }
+
+    static void warn(String message) {
+        log(Level.WARN, message);
+    }
+
+    static void error(String message) {
+        log(Level.ERROR, message);
+    }
+
+    /**
+     * Queue a message for the sinks, unless it is below the threshold level.
+     */
+    static void log(Level level, String message) {
+        if (level.compareTo(threshold) < 0) {
+            return;
+        }
+        long sequence = CLAIMED.getAndIncrement();
+        while (sequence - drained >= CAPACITY) { // ring full: wait for the drain thread
+            LockSupport.unpark(DRAIN);
+            LockSupport.parkNanos(50_000);
+        }
+        RING.lazySet((int) (sequence & MASK), new Entry(level, message));
+    }
+
+    /**
+     * Lowest level of the messages that are logged (INFO by default).
+     */
+    static void setLevel(Level level) {
+        threshold = level;
+    }
+
+    /**
+     * Print all messages of the console sink to stderr (when stdout carries data).
+     */
+    static void setConsoleStderrOnly(boolean stderrOnly) {
+        consoleStderrOnly = stderrOnly;
+    }
+
+    static void addSink(Sink sink) {
+        SINKS.add(sink);
+    }
+
+    static void removeSink(Sink sink) {
+        SINKS.remove(sink);
+    }
+
+    /**
+     * Wait until every message logged before the call has been written to the sinks.
+     */
+    static void flush() {
+        long target = CLAIMED.get();
+        while (drained < target && DRAIN.isAlive()) {
+            LockSupport.unpark(DRAIN);
+            LockSupport.parkNanos(100_000);
+        }
+    }
+
+    private static void drainLoop() {
+        List<Entry> batch = new ArrayList<>(MAX_BATCH);
+        long next = 0;
+        while (true) {
+            Entry entry;
+            while (batch.size() < MAX_BATCH && (entry = RING.get((int) (next & MASK))) != null) {
+                RING.set((int) (next & MASK), null);
+                batch.add(entry);
+                next++;
+            }
+            if (batch.isEmpty()) {
+                LockSupport.parkNanos(1_000_000);
+                continue;
+            }
+            for (Sink sink : SINKS) {
+                try {
+                    sink.write(batch);
+                } catch (RuntimeException e) {
+                    // a failing sink must not stop the log
+                }
+            }
+            batch.clear();
+            drained = next;
+        }
+    }
+}
@@ -0,0 +1,443 @@
+package cp3.lab04.crypt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Record of the files processed by earlier runs (--manifest), so that files
+ * that have not changed since are skipped. For every input it keeps the path,
+ * size, modification time and a hash of the content, plus the output written
+ * and a fingerprint of the operation that wrote it. A file is unchanged if its
+ * size and time are those recorded, it was processed the same way (same
+ * fingerprint) and its output is still there; if only its time differs, its
+ * content is hashed and compared.
+ *
+ * <p>The fingerprint covers the operation (encrypt, decrypt or re-key), the
+ * cipher, compression level and KDF iterations used to encrypt, and the
+ * passwords, so a run with another password or other settings processes the
+ * files again. Passwords enter it only through a verifier: PBKDF2 of the
+ * password with a random salt kept in the manifest (VERIFIER_ITERATIONS
+ * iterations, once per password and manifest), so the manifest does not give
+ * away the passwords any more cheaply than the files it lists.
+ *
+ * <p>The manifest is a binary file of entries sorted by path:
+ * <pre>
+ *   "JCRM" version salt fingerprint-count fingerprint-count x (fingerprint) count
+ *   count x (shared path chars, path suffix, size, mtime, hash, fingerprint number, shared output chars, output suffix)
+ * </pre>
+ * Paths and outputs are front-coded (the length of the prefix shared with the
+ * previous entry, then the rest in UTF-8), the few distinct fingerprints are
+ * stored once and referred to by number, and numbers are varints, so an
+ * entry of a deep tree takes some 40 bytes. Loaded entries stay in a sorted
+ * array (binary search); entries recorded during a run are kept aside and
+ * merged in when the manifest is saved.
+ */
+class JCryptManifest {
+
+    private static final byte[] MAGIC = { 'J', 'C', 'R', 'M' };
+    private static final int VERSION = 1;
+
+    /** Bytes of the content hash (SHA-256, truncated) kept per file. */
+    static final int HASH_LENGTH = 16;
+
+    /** Bytes of the fingerprint of the operation (SHA-256, truncated) kept per file. */
+    static final int FINGERPRINT_LENGTH = 16;
+
+    /** Bytes of the salt of the password verifiers. */
+    static final int SALT_LENGTH = 16;
+
+    /** PBKDF2 iterations of the password verifiers. */
+    static final int VERIFIER_ITERATIONS = 100000;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /**
+     * What is known of one input file.
+     */
+    static class Entry {
+        final String path;
+        final long size;
+        final long mtime;
+        final byte[] hash;
+        final byte[] fingerprint;
+        final String output;
+
+        Entry(String path, long size, long mtime, byte[] hash, byte[] fingerprint, String output) {
+            this.path = path;
+            this.size = size;
+            this.mtime = mtime;
+            this.hash = hash;
+            this.fingerprint = fingerprint;
+            this.output = output;
+        }
+    }
+
+    private static final Comparator<Entry> BY_PATH = Comparator.comparing(e -> e.path);
+
+    private final String filename;
+    private final byte[] salt;
+    private final Entry[] loaded; // sorted by path
+    private final ConcurrentHashMap<String, Entry> recorded = new ConcurrentHashMap<>();
+    private final LongAdder skipped = new LongAdder();
+    private final Map<String, byte[]> verifiers = new HashMap<>(); // password -> verifier, guarded by itself
+
+    private JCryptManifest(String filename, byte[] salt, Entry[] loaded) {
+        this.filename = filename;
+        this.salt = salt;
+        this.loaded = loaded;
+    }
+
+    /**
+     * Read a manifest, or start an empty one if the file does not exist.
+     * @param filename name of the manifest file
+     */
+    static JCryptManifest load(String filename) throws JCryptUtil.Problem {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename), JCryptIO.BLOCK_SIZE))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC) || readVarLong(in) != VERSION) {
+                throw new JCryptUtil.Problem("File \"" + filename + "\" is not a JCrypt manifest");
+            }
+            byte[] salt = new byte[SALT_LENGTH];
+            in.readFully(salt);
+            byte[][] fingerprints = new byte[(int) readVarLong(in)][FINGERPRINT_LENGTH];
+            for (byte[] fingerprint : fingerprints) {
+                in.readFully(fingerprint);
+            }
+            int count = (int) readVarLong(in);
+            Entry[] entries = new Entry[count];
+            String path = "";
+            String output = "";
+            for (int i = 0; i < count; i++) {
+                path = readFrontCoded(in, path);
+                long size = readVarLong(in);
+                long mtime = readVarLong(in);
+                byte[] hash = new byte[HASH_LENGTH];
+                in.readFully(hash);
+                long number = readVarLong(in);
+                if (number >= fingerprints.length) {
+                    throw new JCryptUtil.Problem("Manifest \"" + filename + "\" is corrupt");
+                }
+                output = readFrontCoded(in, output);
+                entries[i] = new Entry(path, size, mtime, hash, fingerprints[(int) number], output);
+                if (i > 0 && entries[i - 1].path.compareTo(path) >= 0) {
+                    throw new JCryptUtil.Problem("Manifest \"" + filename + "\" is corrupt");
+                }
+            }
+            return new JCryptManifest(filename, salt, entries);
+        } catch (FileNotFoundException e) {
+            if (new File(filename).exists()) {
+                throw new JCryptUtil.Problem("Cannot read from file \"" + filename + "\"");
+            }
+            return new JCryptManifest(filename, newSalt(), new Entry[0]);
+        } catch (EOFException e) {
+            throw new JCryptUtil.Problem("Manifest \"" + filename + "\" is corrupt");
+        } catch (IOException e) {
+            throw new JCryptUtil.Problem("Cannot read from file \"" + filename + "\"");
+        }
+    }
+
+    /**
+     * Write the manifest, with the entries recorded since it was loaded.
+     * The file is replaced at once, so a failed save leaves the previous manifest.
+     */
+    void save() throws JCryptUtil.Problem {
+        Entry[] changes = recorded.values().toArray(new Entry[0]);
+        Arrays.sort(changes, BY_PATH);
+        List<Entry> entries = new ArrayList<>(loaded.length + changes.length);
+        int i = 0;
+        int j = 0;
+        while (i < loaded.length || j < changes.length) { // merge, recorded entries replacing loaded ones
+            int order = i == loaded.length ? 1 : j == changes.length ? -1 : loaded[i].path.compareTo(changes[j].path);
+            if (order < 0) {
+                entries.add(loaded[i++]);
+            } else {
+                if (order == 0) {
+                    i++;
+                }
+                entries.add(changes[j++]);
+            }
+        }
+        Map<String, Integer> numbers = new HashMap<>(); // distinct fingerprints, by their hex
+        List<byte[]> fingerprints = new ArrayList<>();
+        for (Entry entry : entries) {
+            if (numbers.putIfAbsent(hex(entry.fingerprint), fingerprints.size()) == null) {
+                fingerprints.add(entry.fingerprint);
+            }
+        }
+        Path target = Paths.get(filename).toAbsolutePath();
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp.toFile()), JCryptIO.BLOCK_SIZE))) {
+            out.write(MAGIC);
+            writeVarLong(out, VERSION);
+            out.write(salt);
+            writeVarLong(out, fingerprints.size());
+            for (byte[] fingerprint : fingerprints) {
+                out.write(fingerprint);
+            }
+            writeVarLong(out, entries.size());
+            String path = "";
+            String output = "";
+            for (Entry entry : entries) {
+                writeFrontCoded(out, path, entry.path);
+                writeVarLong(out, entry.size);
+                writeVarLong(out, entry.mtime);
+                out.write(entry.hash);
+                writeVarLong(out, numbers.get(hex(entry.fingerprint)));
+                writeFrontCoded(out, output, entry.output);
+                path = entry.path;
+                output = entry.output;
+            }
+        } catch (IOException e) {
+            temp.toFile().delete();
+            throw new JCryptUtil.Problem("Cannot write to file \"" + temp + "\"");
+        }
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new JCryptUtil.Problem("Cannot write to file \"" + filename + "\"");
+        }
+    }
+
+    /**
+     * The entry of a file, or null if it has none.
+     * @param path absolute, normalized path of the file
+     */
+    Entry get(String path) {
+        Entry entry = recorded.get(path);
+        if (entry != null) {
+            return entry;
+        }
+        int low = 0;
+        int high = loaded.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int order = loaded[mid].path.compareTo(path);
+            if (order < 0) {
+                low = mid + 1;
+            } else if (order > 0) {
+                high = mid - 1;
+            } else {
+                return loaded[mid];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Check whether a file must be processed.
+     * @param filename the input file
+     * @param output the file its output is written to
+     * @param fingerprint of the operation (see fingerprint())
+     * @return the entry to record() once the file has been processed, or null if it is unchanged
+     */
+    Entry check(String filename, String output, byte[] fingerprint) throws JCryptUtil.Problem {
+        Path source = Paths.get(filename).toAbsolutePath().normalize();
+        String path = source.toString();
+        String target = Paths.get(output).toAbsolutePath().normalize().toString();
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(source, BasicFileAttributes.class);
+        } catch (IOException e) {
+            throw new JCryptUtil.Problem("File \"" + filename + "\" not found");
+        }
+        long size = attrs.size();
+        long mtime = attrs.lastModifiedTime().toMillis();
+        Entry entry = get(path);
+        boolean same = entry != null && entry.size == size && Arrays.equals(entry.fingerprint, fingerprint)
+                && entry.output.equals(target) && new File(target).exists();
+        if (same && entry.mtime == mtime) {
+            skipped.increment();
+            return null;
+        }
+        byte[] hash = hash(filename);
+        if (same && Arrays.equals(entry.hash, hash)) { // touched, but not changed
+            recorded.put(path, new Entry(path, size, mtime, hash, fingerprint, target));
+            skipped.increment();
+            return null;
+        }
+        return new Entry(path, size, mtime, hash, fingerprint, target);
+    }
+
+    /**
+     * Fingerprint of the operation that options ask for: what is done to the
+     * files, the settings that change the encrypted output, and verifiers of
+     * the passwords.
+     * @param opts JCrypt command-line options
+     */
+    byte[] fingerprint(JCryptUtil.Options opts) throws JCryptUtil.Problem {
+        boolean decrypt = opts.decryptionPassword.length() > 0;
+        boolean encrypt = opts.encryptionPassword.length() > 0;
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            String operation = (decrypt ? "decrypt;" : "") + (encrypt ? "encrypt;cipher=" + opts.cipher
+                    + ";compress=" + opts.compression + ";kdf-iterations=" + opts.kdfIterations + ";" : "");
+            digest.update(operation.getBytes(StandardCharsets.UTF_8));
+            if (decrypt) {
+                digest.update(verifier(opts.decryptionPassword));
+            }
+            if (encrypt) {
+                digest.update(verifier(opts.encryptionPassword));
+            }
+            return Arrays.copyOf(digest.digest(), FINGERPRINT_LENGTH);
+        } catch (GeneralSecurityException e) {
+            throw new JCryptUtil.Problem("Cannot fingerprint the operation for the manifest");
+        }
+    }
+
+    /**
+     * Verifier of a password: PBKDF2 with the manifest's salt, derived once per password.
+     */
+    private byte[] verifier(String password) throws GeneralSecurityException {
+        synchronized (verifiers) {
+            byte[] verifier = verifiers.get(password);
+            if (verifier == null) {
+                PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, VERIFIER_ITERATIONS, 256);
+                try {
+                    verifier = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+                } finally {
+                    spec.clearPassword();
+                }
+                verifiers.put(password, verifier);
+            }
+            return verifier;
+        }
+    }
+
+    private static byte[] newSalt() {
+        byte[] salt = new byte[SALT_LENGTH];
+        RANDOM.nextBytes(salt);
+        return salt;
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder s = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            s.append(String.format("%02x", b));
+        }
+        return s.toString();
+    }
+
+    /**
+     * Record a file as processed.
+     * @param entry returned by check() before processing it
+     */
+    void record(Entry entry) {
+        recorded.put(entry.path, entry);
+    }
+
+    /**
+     * Files skipped by check() as unchanged.
+     */
+    long skipped() {
+        return skipped.sum();
+    }
+
+    /**
+     * Hash of the content of a file (the first HASH_LENGTH bytes of its SHA-256).
+     */
+    static byte[] hash(String filename) throws JCryptUtil.Problem {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new JCryptUtil.Problem("SHA-256 not available");
+        }
+        FileChannel in = JCryptIO.openForReading(filename);
+        ByteBuffer block = JCryptIO.acquire(JCryptIO.BLOCK_SIZE);
+        try {
+            boolean more = true;
+            while (more) {
+                block.clear();
+                more = JCryptIO.readFully(in, block);
+                block.flip();
+                digest.update(block);
+            }
+        } catch (IOException e) {
+            throw new JCryptUtil.Problem("Cannot read from file \"" + filename + "\"");
+        } finally {
+            JCryptIO.release(block);
+            JCryptIO.close(in);
+        }
+        return Arrays.copyOf(digest.digest(), HASH_LENGTH);
+    }
+
+    private static void writeFrontCoded(DataOutputStream out, String previous, String s) throws IOException {
+        int shared = 0;
+        int max = Math.min(previous.length(), s.length());
+        while (shared < max && previous.charAt(shared) == s.charAt(shared)) {
+            shared++;
+        }
+        if (shared > 0 && Character.isHighSurrogate(s.charAt(shared - 1))) {
+            shared--; // do not split a surrogate pair
+        }
+        byte[] suffix = s.substring(shared).getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, shared);
+        writeVarLong(out, suffix.length);
+        out.write(suffix);
+    }
+
+    private static String readFrontCoded(DataInputStream in, String previous) throws IOException {
+        int shared = (int) readVarLong(in);
+        byte[] suffix = new byte[(int) readVarLong(in)];
+        in.readFully(suffix);
+        if (shared > previous.length()) {
+            throw new IOException("Bad prefix length");
+        }
+        return previous.substring(0, shared) + new String(suffix, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Write a non-negative number in 7-bit groups, low group first.
+     */
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Bad varint");
+    }
+}
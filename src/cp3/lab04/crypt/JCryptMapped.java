@@ -0,0 +1,247 @@
+package cp3.lab04.crypt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.Checksum;
+
+import javax.crypto.Cipher;
+
+/**
+ * Encryption/decryption of files in the same format as JCryptUtil.writeEncryptedFile,
+ * through memory-mapped files. The input is mapped in windows that are handed
+ * straight to Cipher.update, which writes into windows of an output file
+ * preallocated to its final (or, for decryption, maximum) size. Nothing is copied
+ * into a byte[] of the file's size, and files may exceed 2 GB.
+ *
+ * <p>Each window is unmapped as soon as it is done with, rather than when the
+ * GC gets round to it, so that a multi-GB file does not pin its address space.
+ * If a file cannot be mapped (e.g. it is not a regular file), the methods return
+ * false and the caller falls back to the regular path.
+ */
+class JCryptMapped {
+
+    /** Bytes of input mapped at a time (a multiple of the cipher block size). */
+    static final long WINDOW = 64L * 1024 * 1024;
+
+    /**
+     * Encrypt a file into a file that can be read by JCryptUtil.readEncryptedFile.
+     * @param password with which the cleartext is to be encrypted
+     * @param source name of the cleartext file
+     * @param target name of the encrypted file to write
+     * @return false if the files could not be mapped (nothing was written)
+     */
+    static boolean encryptFile(String password, String source, String target) throws JCryptUtil.Problem {
+        Cipher cipher = JCryptUtil.makeCipher(password, Cipher.ENCRYPT_MODE);
+        Checksum crc = JCryptChecksum.create();
+        FileChannel in = JCryptIO.openForReading(source);
+        FileChannel out = null;
+        boolean ok = false;
+        try {
+            long size = in.size();
+            long total = 8 + (size / 8 + 1) * 8; // checksum, then ciphertext with padding
+            out = preallocate(target, total);
+            long outPos = 8;
+            for (long pos = 0; pos < size; pos += WINDOW) {
+                long n = Math.min(WINDOW, size - pos);
+                MappedByteBuffer src = null;
+                MappedByteBuffer dst = null;
+                try {
+                    src = in.map(FileChannel.MapMode.READ_ONLY, pos, n);
+                    dst = out.map(FileChannel.MapMode.READ_WRITE, outPos, Math.min(n + 8, total - outPos));
+                    for (int from = 0; from < n; from += JCryptChecksum.BLOCK_SIZE) { // checksum each block while in cache
+                        src.limit((int) Math.min(n, from + JCryptChecksum.BLOCK_SIZE));
+                        src.mark();
+                        crc.update(src);
+                        src.reset();
+                        cipher.update(src, dst);
+                    }
+                    outPos += dst.position();
+                } finally {
+                    unmap(src);
+                    unmap(dst);
+                }
+            }
+            JCryptIO.writeFully(out, ByteBuffer.wrap(cipher.doFinal()), outPos);
+            ByteBuffer checksum = ByteBuffer.allocate(8);
+            checksum.putLong(JCryptChecksum.stored(crc)).flip();
+            JCryptIO.writeFully(out, checksum, 0);
+            ok = true;
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            JCryptUtil.discardCipher(password, Cipher.ENCRYPT_MODE);
+            return false;
+        } catch (Exception e) {
+            JCryptUtil.discardCipher(password, Cipher.ENCRYPT_MODE);
+            throw new JCryptUtil.Problem("Encryption failed");
+        } finally {
+            JCryptIO.close(out);
+            JCryptIO.close(in);
+            if (out != null && !ok) {
+                new File(target).delete();
+            }
+        }
+    }
+
+    /**
+     * Decrypt a file written by encryptFile or JCryptUtil.writeEncryptedFile.
+     * Note: the target file is deleted if decryption or the checksum test fails.
+     * @param password with which the ciphertext is encrypted
+     * @param source name of the encrypted file
+     * @param target name of the cleartext file to write
+     * @return false if the files could not be mapped (nothing was written)
+     */
+    static boolean decryptFile(String password, String source, String target) throws JCryptUtil.Problem {
+        Cipher cipher = JCryptUtil.makeCipher(password, Cipher.DECRYPT_MODE);
+        FileChannel in = JCryptIO.openForReading(source);
+        FileChannel out = null;
+        boolean ok = false;
+        try {
+            long size = in.size();
+            if (size < 8) {
+                throw new JCryptUtil.Problem("File \"" + source + "\" is not a JCrypt file");
+            }
+            ByteBuffer header = ByteBuffer.allocate(8);
+            JCryptIO.readFully(in, header, 0);
+            long checksum = header.getLong(0);
+            if (JCryptChecksum.isDeflated(checksum)) { // inflated size unknown: stream it
+                JCryptIO.close(in);
+                JCryptStream.decryptFile(password, source, target);
+                ok = true;
+                return true;
+            }
+            Checksum crc = JCryptChecksum.forStored(checksum);
+            long total = size - 8; // the cleartext is at most as long as the ciphertext
+            out = preallocate(target, total);
+            long outPos = 0;
+            for (long pos = 8; pos < size; pos += WINDOW) {
+                long n = Math.min(WINDOW, size - pos);
+                MappedByteBuffer src = null;
+                MappedByteBuffer dst = null;
+                try {
+                    src = in.map(FileChannel.MapMode.READ_ONLY, pos, n);
+                    dst = out.map(FileChannel.MapMode.READ_WRITE, outPos, Math.min(n + 8, total - outPos));
+                    ByteBuffer produced = dst.duplicate();
+                    for (int from = 0; from < n; from += JCryptChecksum.BLOCK_SIZE) { // checksum each block while in cache
+                        src.limit((int) Math.min(n, from + JCryptChecksum.BLOCK_SIZE));
+                        cipher.update(src, dst);
+                        produced.limit(dst.position());
+                        crc.update(produced);
+                    }
+                    outPos += dst.position();
+                } finally {
+                    unmap(src);
+                    unmap(dst);
+                }
+            }
+            byte[] tail;
+            try {
+                tail = cipher.doFinal();
+            } catch (Exception e) {
+                JCryptUtil.discardCipher(password, Cipher.DECRYPT_MODE);
+                throw new JCryptUtil.Problem("Decryption failed ");
+            }
+            crc.update(tail);
+            JCryptIO.writeFully(out, ByteBuffer.wrap(tail), outPos);
+            out.truncate(outPos + tail.length); // drop the room left for padding
+            if (JCryptChecksum.stored(crc) != checksum) {
+                throw new JCryptUtil.Problem("Checksum (" + checksum + ") invalid ");
+            }
+            ok = true;
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            JCryptUtil.discardCipher(password, Cipher.DECRYPT_MODE);
+            return false;
+        } catch (JCryptUtil.Problem e) {
+            throw e;
+        } catch (Exception e) {
+            JCryptUtil.discardCipher(password, Cipher.DECRYPT_MODE);
+            throw new JCryptUtil.Problem("Decryption failed ");
+        } finally {
+            JCryptIO.close(out);
+            JCryptIO.close(in);
+            if (out != null && !ok) {
+                new File(target).delete();
+            }
+        }
+    }
+
+    /**
+     * Create (or truncate) a file and extend it to its final length, so that its
+     * windows can be mapped for writing.
+     */
+    private static FileChannel preallocate(String filename, long length) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(filename, "rw");
+        try {
+            file.setLength(0);
+            file.setLength(length);
+            return file.getChannel();
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /** Releases a mapping immediately, or null if the running JVM offers no way to. */
+    private static final Unmapper UNMAPPER = Unmapper.find();
+
+    /**
+     * Unmap a buffer now instead of waiting for it to be garbage collected.
+     * The buffer must not be used afterwards (accessing it would crash the JVM).
+     */
+    static void unmap(MappedByteBuffer buffer) {
+        if (buffer != null && UNMAPPER != null) {
+            try {
+                UNMAPPER.unmap(buffer);
+            } catch (Exception e) {
+                // leave the mapping to the GC
+            }
+        }
+    }
+
+    /**
+     * Access to the JDK-internal cleaner of direct buffers: Unsafe.invokeCleaner
+     * on Java 9 and later, DirectBuffer.cleaner().clean() on Java 8.
+     */
+    private static abstract class Unmapper {
+        abstract void unmap(ByteBuffer buffer) throws Exception;
+
+        static Unmapper find() {
+            try {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                final Object unsafe = theUnsafe.get(null);
+                return new Unmapper() {
+                    @Override
+                    void unmap(ByteBuffer buffer) throws Exception {
+                        invokeCleaner.invoke(unsafe, buffer);
+                    }
+                };
+            } catch (Exception e) {
+                // not Java 9+, try the Java 8 way
+            }
+            try {
+                final Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+                final Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+                return new Unmapper() {
+                    @Override
+                    void unmap(ByteBuffer buffer) throws Exception {
+                        Object c = cleaner.invoke(buffer);
+                        if (c != null) {
+                            clean.invoke(c);
+                        }
+                    }
+                };
+            } catch (Exception e) {
+                return null;
+            }
+        }
+    }
+}
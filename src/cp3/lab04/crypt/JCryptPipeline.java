@@ -0,0 +1,372 @@
+package cp3.lab04.crypt;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Checksum;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Pipelined processing of a batch: reader, cipher and writer stages, each with
+ * its own threads, so that disks and CPUs are busy at the same time.
+ * Files are read in blocks (pooled direct buffers, see JCryptIO) that travel
+ * through bounded queues; a full queue blocks the stage feeding it, so the
+ * memory in flight is bounded however fast or slow each stage is.
+ *
+ * <p>The blocks of a file must be encrypted and written in order (CBC chains
+ * them), so the cipher and writer stages are partitioned by file: every file
+ * belongs to one cipher thread and one writer thread, each with a queue of its
+ * own. The output is in the same format as JCryptUtil.writeEncryptedFile.
+ * Files the pipeline does not handle (chunked, mapped, or not saved to a
+ * file) are processed whole by the reader that picks them up.
+ */
+class JCryptPipeline {
+
+    /** Blocks each cipher and writer thread may have queued. */
+    static final int QUEUE_DEPTH = 4;
+
+    /** Extra room in output blocks for padding. */
+    private static final int OUTPUT_SLACK = 64;
+
+    private final JCryptUtil.Options opts;
+    private final boolean decrypt;
+    private final byte[] key;
+    private final AtomicInteger nextFile = new AtomicInteger();
+    private final List<BlockingQueue<Block>> cipherQueues = new ArrayList<>();
+    private final List<BlockingQueue<Block>> writerQueues = new ArrayList<>();
+    private final Stage read;
+    private final Stage crypt;
+    private final Stage write;
+    private long elapsed;
+
+    /** Marks the end of a queue. */
+    private static final Block END = new Block(null, null, true);
+
+    /**
+     * Work and time spent in one stage.
+     */
+    static class Stage {
+        final String name;
+        final int threads;
+        final LongAdder busy = new LongAdder(); // nanoseconds spent working (not waiting on queues)
+
+        Stage(String name, int threads) {
+            this.name = name;
+            this.threads = threads;
+        }
+
+        /**
+         * Fraction of the stage's thread time spent working.
+         */
+        double utilisation(long elapsed) {
+            return elapsed > 0 ? busy.sum() / ((double) elapsed * threads) : 0;
+        }
+    }
+
+    /**
+     * State of a file in the pipeline.
+     */
+    private class Job {
+        final int index;
+        final String source;
+        final String target;
+        Checksum crc = JCryptChecksum.create();
+        Cipher cipher;
+        long checksum;
+        FileChannel out;
+        JCryptManifest.Entry entry; // to record once the file is written (with a manifest)
+        volatile String error;
+
+        Job(int index) {
+            this.index = index;
+            this.source = opts.filenames[index];
+            this.target = decrypt ? JCrypt.decryptedOutputPath(opts, index) : JCrypt.encryptedOutputPath(opts, index);
+        }
+    }
+
+    /**
+     * A block of a file on its way through the pipeline.
+     */
+    private static class Block {
+        final Job job;
+        final ByteBuffer data; // null once the file has failed
+        final boolean last;
+
+        Block(Job job, ByteBuffer data, boolean last) {
+            this.job = job;
+            this.data = data;
+            this.last = last;
+        }
+    }
+
+    /**
+     * @param opts JCrypt command-line options (exactly one of encrypt and decrypt)
+     * @param readers number of reader threads
+     * @param ciphers number of cipher threads
+     * @param writers number of writer threads
+     */
+    JCryptPipeline(JCryptUtil.Options opts, int readers, int ciphers, int writers) throws JCryptUtil.Problem {
+        this.opts = opts;
+        this.decrypt = opts.decryptionPassword.length() > 0;
+        this.key = JCryptUtil.pbeKeyAndIv(decrypt ? opts.decryptionPassword : opts.encryptionPassword);
+        this.read = new Stage("read", readers);
+        this.crypt = new Stage("cipher", ciphers);
+        this.write = new Stage("write", writers);
+        for (int i = 0; i < ciphers; i++) {
+            cipherQueues.add(new ArrayBlockingQueue<Block>(QUEUE_DEPTH));
+        }
+        for (int i = 0; i < writers; i++) {
+            writerQueues.add(new ArrayBlockingQueue<Block>(QUEUE_DEPTH));
+        }
+    }
+
+    /**
+     * Process all files of the batch and wait for them to finish.
+     */
+    void run() throws InterruptedException {
+        long start = System.nanoTime();
+        List<Thread> readers = start(read, this::reader);
+        List<Thread> ciphers = start(crypt, this::cipher);
+        List<Thread> writers = start(write, this::writer);
+        join(readers);
+        for (BlockingQueue<Block> queue : cipherQueues) {
+            queue.put(END);
+        }
+        join(ciphers);
+        for (BlockingQueue<Block> queue : writerQueues) {
+            queue.put(END);
+        }
+        join(writers);
+        elapsed = System.nanoTime() - start;
+    }
+
+    private interface StageLoop {
+        void run(int thread) throws InterruptedException;
+    }
+
+    private static List<Thread> start(Stage stage, StageLoop loop) {
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < stage.threads; i++) {
+            final int thread = i;
+            Thread t = new Thread(() -> {
+                try {
+                    loop.run(thread);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "JCrypt-" + stage.name + "-" + i);
+            threads.add(t);
+            t.start();
+        }
+        return threads;
+    }
+
+    private static void join(List<Thread> threads) throws InterruptedException {
+        for (Thread t : threads) {
+            t.join();
+        }
+    }
+
+    /**
+     * @return true if the pipeline handles the file (else it is processed whole)
+     */
+    private boolean pipelined(int index) {
+        String filename = opts.filenames[index];
+        return opts.saveToFile && !opts.mmap
+                && (decrypt ? !JCryptChunked.isChunked(filename) && !JCryptSuite.isSuiteFile(filename) && !JCryptStream.isDeflated(filename)
+                        : JCryptSuite.forName(opts.cipher) == null && opts.compression == 0 && JCrypt.getFileSize(filename) <= opts.parallelThreshold);
+    }
+
+    /**
+     * Reader stage: takes the next file of the batch and queues its blocks to the file's cipher thread.
+     */
+    private void reader(int thread) throws InterruptedException {
+        int index;
+        while ((index = nextFile.getAndIncrement()) < opts.filenames.length) {
+            long time = System.nanoTime();
+            if (!pipelined(index)) {
+                try {
+                    JCrypt.process(opts, index);
+                } catch (JCryptUtil.Problem e) {
+                    JCryptLog.error("ERROR in thread: " + e.getMessage());
+                }
+                read.busy.add(System.nanoTime() - time);
+                continue;
+            }
+            Job job = new Job(index);
+            BlockingQueue<Block> queue = cipherQueues.get(index % cipherQueues.size());
+            FileChannel in = null;
+            try {
+                if (JCrypt.manifested(opts)) {
+                    job.entry = JCrypt.checkManifest(opts, index);
+                    if (job.entry == null) {
+                        read.busy.add(System.nanoTime() - time);
+                        continue; // unchanged since the last run
+                    }
+                }
+                in = JCryptIO.openForReading(job.source);
+                job.cipher = Cipher.getInstance("DES/CBC/PKCS5Padding");
+                job.cipher.init(decrypt ? Cipher.DECRYPT_MODE : Cipher.ENCRYPT_MODE,
+                        new SecretKeySpec(key, 0, 8, "DES"), new IvParameterSpec(key, 8, 8));
+                if (decrypt) {
+                    ByteBuffer header = ByteBuffer.allocate(8);
+                    if (!JCryptIO.readFully(in, header)) {
+                        throw new JCryptUtil.Problem("File \"" + job.source + "\" is not a JCrypt file");
+                    }
+                    job.checksum = header.getLong(0);
+                    job.crc = JCryptChecksum.forStored(job.checksum);
+                }
+                JCryptLog.info((decrypt ? "Decrypting" : "Encrypting") + " (pipelined) " + job.source);
+                boolean more = true;
+                while (more) {
+                    ByteBuffer data = JCryptIO.acquire(JCryptIO.BLOCK_SIZE);
+                    more = JCryptIO.readFully(in, data);
+                    data.flip();
+                    read.busy.add(System.nanoTime() - time);
+                    queue.put(new Block(job, data, !more));
+                    time = System.nanoTime();
+                }
+            } catch (JCryptUtil.Problem e) {
+                job.error = e.getMessage();
+            } catch (IOException e) {
+                job.error = "Cannot read from file \"" + job.source + "\"";
+            } catch (Exception e) {
+                job.error = (decrypt ? "Decryption" : "Encryption") + " failed";
+            } finally {
+                JCryptIO.close(in);
+            }
+            if (job.error != null) {
+                read.busy.add(System.nanoTime() - time);
+                queue.put(new Block(job, null, true));
+            }
+        }
+    }
+
+    /**
+     * Cipher stage: encrypts or decrypts the blocks of its files, in order.
+     */
+    private void cipher(int thread) throws InterruptedException {
+        BlockingQueue<Block> queue = cipherQueues.get(thread);
+        Block block;
+        while ((block = queue.take()) != END) {
+            long time = System.nanoTime();
+            Job job = block.job;
+            ByteBuffer out = null;
+            if (job.error == null) {
+                try {
+                    out = JCryptIO.acquire(JCryptIO.BLOCK_SIZE + OUTPUT_SLACK);
+                    ByteBuffer in = block.data;
+                    if (!decrypt) {
+                        in.mark();
+                        job.crc.update(in);
+                        in.reset();
+                    }
+                    job.cipher.update(in, out);
+                    if (block.last) {
+                        job.cipher.doFinal(in, out);
+                    }
+                    out.flip();
+                    if (decrypt) {
+                        out.mark();
+                        job.crc.update(out);
+                        out.reset();
+                        if (block.last && JCryptChecksum.stored(job.crc) != job.checksum) {
+                            job.error = "Checksum (" + job.checksum + ") invalid ";
+                        }
+                    }
+                } catch (Exception e) {
+                    job.error = decrypt ? "Decryption failed " : "Encryption failed";
+                }
+                if (job.error != null) {
+                    JCryptIO.release(out);
+                    out = null;
+                }
+            }
+            JCryptIO.release(block.data);
+            crypt.busy.add(System.nanoTime() - time);
+            if (out != null || block.last) {
+                writerQueues.get(job.index % writerQueues.size()).put(new Block(job, out, block.last));
+            }
+        }
+    }
+
+    /**
+     * Writer stage: writes the blocks of its files, and completes (or removes) each file after its last block.
+     */
+    private void writer(int thread) throws InterruptedException {
+        BlockingQueue<Block> queue = writerQueues.get(thread);
+        Block block;
+        while ((block = queue.take()) != END) {
+            long time = System.nanoTime();
+            Job job = block.job;
+            try {
+                if (job.error == null && job.out == null) {
+                    job.out = JCryptIO.openForWriting(job.target);
+                    if (!decrypt) {
+                        JCryptIO.writeFully(job.out, ByteBuffer.allocate(8)); // checksum placeholder
+                    }
+                }
+                if (job.error == null && block.data != null) {
+                    JCryptIO.writeFully(job.out, block.data);
+                }
+                if (job.error == null && block.last && !decrypt) {
+                    ByteBuffer checksum = ByteBuffer.allocate(8);
+                    checksum.putLong(JCryptChecksum.stored(job.crc)).flip();
+                    JCryptIO.writeFully(job.out, checksum, 0);
+                }
+            } catch (JCryptUtil.Problem e) {
+                job.error = e.getMessage();
+            } catch (IOException e) {
+                job.error = "Cannot write to file \"" + job.target + "\"";
+            }
+            JCryptIO.release(block.data);
+            if (block.last) {
+                JCryptIO.close(job.out);
+                if (job.error != null) {
+                    if (job.out != null) {
+                        new File(job.target).delete();
+                    }
+                    JCryptLog.error("ERROR in thread: " + job.error);
+                } else if (job.entry != null) {
+                    opts.manifest.record(job.entry);
+                }
+            }
+            write.busy.add(System.nanoTime() - time);
+        }
+    }
+
+    /**
+     * Bytes of buffers the pipeline can have in flight at most.
+     */
+    long maxBufferedBytes() {
+        long queued = (long) (cipherQueues.size() + writerQueues.size()) * QUEUE_DEPTH;
+        long working = read.threads + crypt.threads * 2 + write.threads;
+        int block = JCryptBufferPool.classSize(JCryptBufferPool.sizeClass(JCryptIO.BLOCK_SIZE + OUTPUT_SLACK));
+        return (queued + working) * block;
+    }
+
+    /**
+     * One line per stage with its threads and utilisation during the last run().
+     */
+    String report() {
+        StringBuilder report = new StringBuilder();
+        for (Stage stage : new Stage[] { read, crypt, write }) {
+            if (report.length() > 0) {
+                report.append(System.lineSeparator());
+            }
+            report.append(String.format("  %-6s %2d threads, %5.1f%% busy",
+                    stage.name, stage.threads, stage.utilisation(elapsed) * 100));
+        }
+        return report.toString();
+    }
+}
@@ -0,0 +1,128 @@
+package cp3.lab04.crypt;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Size-aware scheduling of a batch of files onto a fixed number of workers.
+ * All inputs are stat'ed up front and each file's processing time is predicted
+ * from its size and the operation (see cost()). Files are then packed onto the
+ * workers longest-processing-time-first: in order of decreasing cost, each file
+ * goes to the worker with the least predicted work so far. That keeps a huge file
+ * from starting last and leaving one busy core at the end of the batch.
+ *
+ * <p>Each worker processes its own files largest first. Since predictions are
+ * only estimates, a worker that runs out of files takes the smallest remaining
+ * file of the worker with the most predicted work left.
+ */
+class JCryptScheduler {
+
+    /** Names accepted by --schedule. */
+    static final String FIFO = "fifo";
+    static final String LPT = "lpt";
+
+    /** Fixed cost of a file (opening, creating the output, cipher setup), in bytes processed. */
+    static final long FILE_OVERHEAD = 64 * 1024;
+
+    private final double[] costs;
+    private final List<ArrayDeque<Integer>> queues;
+    private final double[] remaining;
+    private final double[] predicted;
+
+    /**
+     * Plan the files of a batch.
+     * @param opts JCrypt command-line options (files and operation)
+     * @param workers number of workers the files are packed onto
+     */
+    JCryptScheduler(JCryptUtil.Options opts, int workers) {
+        int files = opts.filenames.length;
+        costs = new double[files];
+        Integer[] order = new Integer[files];
+        for (int i = 0; i < files; i++) {
+            costs[i] = cost(opts, i);
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingDouble((Integer i) -> costs[i]).reversed());
+
+        queues = new ArrayList<>(Math.max(1, workers));
+        remaining = new double[Math.max(1, workers)];
+        for (int w = 0; w < remaining.length; w++) {
+            queues.add(new ArrayDeque<>());
+        }
+        for (int i : order) {
+            int least = 0;
+            for (int w = 1; w < queues.size(); w++) {
+                if (remaining[w] < remaining[least]) {
+                    least = w;
+                }
+            }
+            queues.get(least).addLast(i);
+            remaining[least] += costs[i];
+        }
+        predicted = remaining.clone();
+    }
+
+    /**
+     * Predicted processing time of a file, in (roughly) bytes pushed through the cipher.
+     * Encrypting and decrypting cost about the same per byte with DES; doing both
+     * costs twice as much. Files whose chunks are processed on all cores (see
+     * JCryptChunked) keep their worker busy for only a fraction of that.
+     */
+    static double cost(JCryptUtil.Options opts, int index) {
+        String filename = opts.filenames[index];
+        long size = new File(filename).length();
+        boolean decrypt = opts.decryptionPassword.length() > 0;
+        boolean encrypt = opts.encryptionPassword.length() > 0;
+        double cost = (double) size * ((decrypt ? 1 : 0) + (encrypt ? 1 : 0));
+        boolean chunked = (decrypt && JCryptChunked.isChunked(filename))
+                || (encrypt && !decrypt && opts.saveToFile && size > opts.parallelThreshold);
+        if (chunked) {
+            cost /= Runtime.getRuntime().availableProcessors();
+        }
+        return FILE_OVERHEAD + cost;
+    }
+
+    /**
+     * Next file for a worker: its own largest remaining file, or else the smallest
+     * remaining file of the most loaded worker.
+     * @param worker index of the calling worker (0 .. workers-1)
+     * @return index of the file to process, or -1 when the batch is done
+     */
+    synchronized int next(int worker) {
+        int from = worker;
+        Integer index = queues.get(worker).pollFirst();
+        if (index == null) {
+            from = 0;
+            for (int w = 1; w < queues.size(); w++) {
+                if (remaining[w] > remaining[from]) {
+                    from = w;
+                }
+            }
+            index = queues.get(from).pollLast();
+            if (index == null) {
+                return -1;
+            }
+        }
+        remaining[from] -= costs[index];
+        return index;
+    }
+
+    /**
+     * Predicted imbalance of the plan: how much longer the most loaded worker
+     * runs than the average worker, as a fraction of the average.
+     */
+    double imbalance() {
+        double max = 0;
+        double total = 0;
+        for (double load : predicted) {
+            max = Math.max(max, load);
+            total += load;
+        }
+        double average = total / predicted.length;
+        return average > 0 ? max / average - 1 : 0;
+    }
+}
@@ -0,0 +1,179 @@
+package cp3.lab04.crypt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Read-only, random-access view of the cleartext of a file in the chunked format
+ * (see JCryptChunked). Only the chunks covering the bytes actually read are
+ * decrypted, and the most recently used chunks are kept in a small cache so
+ * that nearby reads do not decrypt the same chunk again.
+ *
+ * <pre>
+ *   try (SeekableByteChannel in = JCryptSeekableChannel.open("big.encrypted", password)) {
+ *       in.position(offset);
+ *       in.read(buffer);
+ *   }
+ * </pre>
+ */
+public class JCryptSeekableChannel implements SeekableByteChannel {
+
+    /** Default number of decrypted chunks kept in memory. */
+    public static final int DEFAULT_CACHED_CHUNKS = 4;
+
+    private final String filename;
+    private final FileChannel in;
+    private final JCryptChunked.Header header;
+    private final byte[] key;
+    private final LinkedHashMap<Long, byte[]> cache;
+    private long position = 0;
+    private long decrypted = 0;
+
+    private JCryptSeekableChannel(String filename, FileChannel in, JCryptChunked.Header header, byte[] key,
+            final int cachedChunks) {
+        this.filename = filename;
+        this.in = in;
+        this.header = header;
+        this.key = key;
+        this.cache = new LinkedHashMap<Long, byte[]>(cachedChunks * 2, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+                return size() > cachedChunks;
+            }
+        };
+    }
+
+    /**
+     * Open a chunked file for random-access reading, with the default cache size.
+     * @param filename name of the encrypted file
+     * @param password with which the file is encrypted
+     */
+    public static JCryptSeekableChannel open(String filename, String password) throws JCryptUtil.Problem {
+        return open(filename, password, DEFAULT_CACHED_CHUNKS);
+    }
+
+    /**
+     * Open a chunked file for random-access reading.
+     * @param filename name of the encrypted file
+     * @param password with which the file is encrypted
+     * @param cachedChunks number of decrypted chunks to keep in memory
+     */
+    public static JCryptSeekableChannel open(String filename, String password, int cachedChunks) throws JCryptUtil.Problem {
+        byte[] key = JCryptUtil.pbeKeyAndIv(password);
+        FileChannel in = JCryptIO.openForReading(filename);
+        try {
+            return new JCryptSeekableChannel(filename, in, JCryptChunked.readHeader(in, filename), key, Math.max(1, cachedChunks));
+        } catch (IOException e) {
+            JCryptIO.close(in);
+            throw new JCryptUtil.Problem("Cannot read from file \"" + filename + "\"");
+        } catch (JCryptUtil.Problem e) {
+            JCryptIO.close(in);
+            throw e;
+        }
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        if (!in.isOpen()) {
+            throw new ClosedChannelException();
+        }
+        if (position >= header.length) {
+            return -1;
+        }
+        int total = 0;
+        while (dst.hasRemaining() && position < header.length) {
+            long chunk = position / header.chunkSize;
+            int offset = (int) (position - chunk * header.chunkSize);
+            int n = Math.min(dst.remaining(), header.cleartextSize(chunk) - offset);
+            dst.put(chunk(chunk), offset, n);
+            position += n;
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * Cleartext of a chunk, from the cache or freshly decrypted.
+     */
+    private byte[] chunk(long i) throws IOException {
+        byte[] clear = cache.get(i);
+        if (clear == null) {
+            try {
+                byte[] buffer = JCryptChunked.decryptChunk(header, key, in, i);
+                clear = new byte[header.cleartextSize(i)];
+                System.arraycopy(buffer, 0, clear, 0, clear.length);
+            } catch (JCryptUtil.Problem e) {
+                throw new IOException(filename + ": " + e.getMessage());
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException(filename + ": decryption of chunk " + i + " failed", e);
+            }
+            cache.put(i, clear);
+            decrypted++;
+        }
+        return clear;
+    }
+
+    /**
+     * Number of chunk decryptions performed so far (cache misses).
+     */
+    public synchronized long chunksDecrypted() {
+        return decrypted;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        if (!in.isOpen()) {
+            throw new ClosedChannelException();
+        }
+        return position;
+    }
+
+    @Override
+    public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+        if (!in.isOpen()) {
+            throw new ClosedChannelException();
+        }
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Negative position");
+        }
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        if (!in.isOpen()) {
+            throw new ClosedChannelException();
+        }
+        return header.length;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return in.isOpen();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        cache.clear();
+        in.close();
+    }
+}
@@ -0,0 +1,162 @@
+package cp3.lab04.crypt;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import javax.crypto.Cipher;
+
+/**
+ * Output of encrypted or decrypted data to standard out (when -s is not given).
+ * The bytes are written as they are (raw) or Base64-encoded on the fly, never
+ * through a String. Each file's output is one record: records are written under
+ * a lock, so workers of a parallel batch never interleave partial records.
+ * In a batch of several files (or -R) each record is framed by a header line
+ *
+ * <pre>==&gt; filename (length bytes) &lt;==</pre>
+ *
+ * followed by length bytes (raw), or their Base64 encoding in lines of 76
+ * characters, and a newline.
+ *
+ * <p>Nothing else is written to standard out then: every message, including
+ * the reports of cracking (-c), goes through JCryptLog, whose console sink
+ * writes to stderr when stdout carries data, so the records can be parsed.
+ */
+class JCryptStdout {
+
+    /** Formats accepted by --stdout. */
+    static final String RAW = "raw";
+    static final String BASE64 = "base64";
+
+    private static final Object LOCK = new Object();
+
+    /**
+     * Write the data of one file to standard out as a record.
+     * @param opts JCrypt command-line options (format, and whether records are framed)
+     * @param index the index of the file in the command-line options
+     * @param data the data to write
+     */
+    static void write(JCryptUtil.Options opts, int index, byte[] data) throws JCryptUtil.Problem {
+        synchronized (LOCK) {
+            OutputStream out = begin(opts, index, data.length);
+            try {
+                out.write(data);
+            } catch (IOException e) {
+                throw new JCryptUtil.Problem("Cannot write to standard output");
+            }
+            end(opts, out);
+        }
+    }
+
+    /**
+     * Encrypt a file to standard out as a record, block by block, straight from
+     * the cipher's output (the ciphertext only, as for whole files).
+     * Note: the record is written while the file is encrypted, so it holds the
+     * lock on standard out for as long as that takes.
+     * @param opts JCrypt command-line options (password, format, framing)
+     * @param index the index of the file in the command-line options
+     */
+    static void encryptFile(JCryptUtil.Options opts, int index) throws JCryptUtil.Problem {
+        String filename = opts.filenames[index];
+        String password = opts.encryptionPassword;
+        Cipher cipher = JCryptUtil.makeCipher(password, Cipher.ENCRYPT_MODE);
+        FileChannel src = JCryptIO.openForReading(filename);
+        byte[] in = JCryptBufferPool.SHARED.array(JCryptIO.BLOCK_SIZE);
+        byte[] out = JCryptBufferPool.SHARED.array(JCryptIO.BLOCK_SIZE + 64);
+        try {
+            long size = src.size();
+            long length = (size / 8 + 1) * 8; // PKCS5 padding adds 1 to 8 bytes
+            synchronized (LOCK) {
+                OutputStream record = begin(opts, index, length);
+                long left = size;
+                while (left > 0) {
+                    int n = (int) Math.min(JCryptIO.BLOCK_SIZE, left);
+                    if (!JCryptIO.readFully(src, ByteBuffer.wrap(in, 0, n))) {
+                        throw new IOException("File shrank while being read");
+                    }
+                    record.write(out, 0, cipher.update(in, 0, n, out, 0));
+                    left -= n;
+                }
+                record.write(out, 0, cipher.doFinal(out, 0));
+                end(opts, record);
+            }
+        } catch (IOException e) {
+            throw new JCryptUtil.Problem("Cannot read from file \"" + filename + "\"");
+        } catch (JCryptUtil.Problem e) {
+            throw e;
+        } catch (Exception e) {
+            JCryptUtil.discardCipher(password, Cipher.ENCRYPT_MODE);
+            throw new JCryptUtil.Problem("Encryption failed");
+        } finally {
+            JCryptBufferPool.SHARED.release(in);
+            JCryptBufferPool.SHARED.release(out);
+            JCryptIO.close(src);
+        }
+    }
+
+    /**
+     * Start a record (with LOCK held): print the log so far, then the frame header.
+     * @return the stream to write the record's bytes to
+     */
+    private static OutputStream begin(JCryptUtil.Options opts, int index, long length) {
+        JCryptLog.flush(); // after the messages about this file
+        PrintStream stdout = System.out;
+        stdout.flush();
+        if (framed(opts)) {
+            byte[] header = ("==> " + opts.filenames[index] + " (" + length + " bytes) <==\n").getBytes(StandardCharsets.UTF_8);
+            stdout.write(header, 0, header.length);
+        }
+        OutputStream out = new Unclosed(stdout);
+        return BASE64.equals(opts.stdoutFormat) ? Base64.getMimeEncoder().wrap(out) : out;
+    }
+
+    /**
+     * End a record (with LOCK held).
+     */
+    private static void end(JCryptUtil.Options opts, OutputStream out) throws JCryptUtil.Problem {
+        PrintStream stdout = System.out;
+        try {
+            out.close(); // writes the end of the Base64 encoding, if any; stdout stays open
+        } catch (IOException e) {
+            throw new JCryptUtil.Problem("Cannot write to standard output");
+        }
+        if (framed(opts) || BASE64.equals(opts.stdoutFormat)) {
+            stdout.write('\n');
+        }
+        stdout.flush();
+        if (stdout.checkError()) {
+            throw new JCryptUtil.Problem("Cannot write to standard output");
+        }
+    }
+
+    /**
+     * Records are framed in batches of more than one file, and of directories.
+     */
+    private static boolean framed(JCryptUtil.Options opts) {
+        return opts.filenames.length > 1 || opts.recursive;
+    }
+
+    /**
+     * Passes arrays through whole, and flushes instead of closing.
+     */
+    private static class Unclosed extends FilterOutputStream {
+        Unclosed(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.flush();
+        }
+    }
+}
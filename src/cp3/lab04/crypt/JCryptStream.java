@@ -0,0 +1,368 @@
+package cp3.lab04.crypt;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.Checksum;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.crypto.Cipher;
+
+/**
+ * Streaming encryption/decryption of files in the same format as
+ * JCryptUtil.writeEncryptedFile (8-byte checksum of the cleartext, then ciphertext).
+ * Data is moved between FileChannels and Cipher.update in fixed-size direct
+ * buffers taken from the JCryptIO pool, so the heap used per worker is constant
+ * regardless of file size (and files may exceed 2 GB).
+ */
+public class JCryptStream {
+
+    /** Size of the blocks read from the input file. */
+    static final int BLOCK_SIZE = JCryptIO.BLOCK_SIZE;
+
+    /** Extra room in output blocks for padding and the checksum header. */
+    private static final int OUTPUT_SLACK = 64;
+
+    /**
+     * Encrypt a file into a file that can be read by JCryptUtil.readEncryptedFile.
+     * @param password with which the cleartext is to be encrypted
+     * @param source name of the cleartext file
+     * @param target name of the encrypted file to write
+     */
+    public static void encryptFile(String password, String source, String target) throws JCryptUtil.Problem {
+        Cipher cipher = JCryptUtil.makeCipher(password, Cipher.ENCRYPT_MODE);
+        Checksum crc = JCryptChecksum.create();
+        FileChannel src = JCryptIO.openForReading(source);
+        FileChannel dst = null;
+        ByteBuffer in = JCryptIO.acquire(BLOCK_SIZE);
+        ByteBuffer out = JCryptIO.acquire(BLOCK_SIZE + OUTPUT_SLACK);
+        try {
+            dst = JCryptIO.openForWriting(target);
+            out.putLong(0); // checksum placeholder, written with the first block and filled in at the end
+            boolean more = true;
+            while (more) {
+                in.clear();
+                more = JCryptIO.readFully(src, in);
+                in.flip();
+                in.mark();
+                crc.update(in);
+                in.reset();
+                cipher.update(in, out);
+                if (!more) {
+                    cipher.doFinal(in, out);
+                }
+                out.flip();
+                JCryptIO.writeFully(dst, out);
+                out.clear();
+            }
+            out.putLong(JCryptChecksum.stored(crc));
+            out.flip();
+            JCryptIO.writeFully(dst, out, 0);
+        } catch (IOException e) {
+            throw new JCryptUtil.Problem("Cannot write to file \"" + target + "\"");
+        } catch (Exception e) {
+            JCryptUtil.discardCipher(password, Cipher.ENCRYPT_MODE);
+            throw new JCryptUtil.Problem("Encryption failed");
+        } finally {
+            JCryptIO.release(in);
+            JCryptIO.release(out);
+            JCryptIO.close(dst);
+            JCryptIO.close(src);
+        }
+    }
+
+    /**
+     * Deflate a file and encrypt it into a file that can be read by decryptFile
+     * (the checksum, that of the original cleartext, is marked as deflated).
+     * Each block is checksummed and deflated while in cache, and the deflated
+     * data goes to the cipher as it comes.
+     * @param password with which the cleartext is to be encrypted
+     * @param source name of the cleartext file
+     * @param target name of the encrypted file to write
+     * @param level Deflater compression level (1-9)
+     */
+    public static void encryptDeflated(String password, String source, String target, int level) throws JCryptUtil.Problem {
+        Cipher cipher = JCryptUtil.makeCipher(password, Cipher.ENCRYPT_MODE);
+        Checksum crc = JCryptChecksum.create();
+        Deflater deflater = new Deflater(level);
+        FileChannel src = JCryptIO.openForReading(source);
+        FileChannel dst = null;
+        boolean ok = false;
+        ByteBuffer in = JCryptIO.acquire(BLOCK_SIZE);
+        ByteBuffer packed = JCryptIO.acquire(BLOCK_SIZE);
+        ByteBuffer out = JCryptIO.acquire(BLOCK_SIZE + OUTPUT_SLACK);
+        try {
+            dst = JCryptIO.openForWriting(target);
+            out.putLong(0); // checksum placeholder, written with the first block and filled in at the end
+            boolean more = true;
+            while (more) {
+                in.clear();
+                more = JCryptIO.readFully(src, in);
+                in.flip();
+                in.mark();
+                crc.update(in);
+                in.reset();
+                deflater.setInput(in);
+                if (!more) {
+                    deflater.finish();
+                }
+                while (more ? !deflater.needsInput() : !deflater.finished()) {
+                    packed.clear().limit(BLOCK_SIZE); // (pooled buffers may be larger)
+                    deflater.deflate(packed);
+                    packed.flip();
+                    cipher.update(packed, out);
+                    out.flip();
+                    JCryptIO.writeFully(dst, out);
+                    out.clear();
+                }
+            }
+            cipher.doFinal(packed, out);
+            out.flip();
+            JCryptIO.writeFully(dst, out);
+            out.clear();
+            out.putLong(JCryptChecksum.stored(crc, true));
+            out.flip();
+            JCryptIO.writeFully(dst, out, 0);
+            ok = true;
+        } catch (IOException e) {
+            throw new JCryptUtil.Problem("Cannot write to file \"" + target + "\"");
+        } catch (Exception e) {
+            JCryptUtil.discardCipher(password, Cipher.ENCRYPT_MODE);
+            throw new JCryptUtil.Problem("Encryption failed");
+        } finally {
+            deflater.end();
+            JCryptIO.release(in);
+            JCryptIO.release(packed);
+            JCryptIO.release(out);
+            JCryptIO.close(dst);
+            JCryptIO.close(src);
+            if (dst != null && !ok) {
+                new File(target).delete();
+            }
+        }
+    }
+
+    /**
+     * Check whether a file in the legacy format was deflated before encryption (by encryptDeflated).
+     */
+    static boolean isDeflated(String filename) {
+        try (FileChannel in = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            return JCryptIO.readFully(in, magic) && magic.getInt(0) == JCryptChecksum.DEFLATED_MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Decrypt a file written by encryptFile, encryptDeflated or JCryptUtil.writeEncryptedFile.
+     * Note: the target file is deleted if decryption or the checksum test fails.
+     * @param password with which the ciphertext is encrypted
+     * @param source name of the encrypted file
+     * @param target name of the cleartext file to write
+     */
+    public static void decryptFile(String password, String source, String target) throws JCryptUtil.Problem {
+        Cipher cipher = JCryptUtil.makeCipher(password, Cipher.DECRYPT_MODE);
+        Checksum crc = null;
+        Inflater inflater = null;
+        boolean ok = false;
+        FileChannel src = JCryptIO.openForReading(source);
+        FileChannel dst = null;
+        ByteBuffer in = JCryptIO.acquire(BLOCK_SIZE);
+        ByteBuffer out = JCryptIO.acquire(BLOCK_SIZE + OUTPUT_SLACK);
+        ByteBuffer clear = null;
+        try {
+            long checksum = readChecksum(src, in, source);
+            crc = JCryptChecksum.forStored(checksum);
+            if (JCryptChecksum.isDeflated(checksum)) {
+                inflater = new Inflater();
+                clear = JCryptIO.acquire(BLOCK_SIZE);
+            }
+            dst = JCryptIO.openForWriting(target);
+            boolean more = true;
+            while (more) {
+                in.clear();
+                more = JCryptIO.readFully(src, in);
+                in.flip();
+                cipher.update(in, out);
+                if (!more) {
+                    cipher.doFinal(in, out);
+                }
+                out.flip();
+                if (inflater != null) {
+                    inflate(inflater, out, clear, crc, dst);
+                } else {
+                    out.mark();
+                    crc.update(out);
+                    out.reset();
+                    JCryptIO.writeFully(dst, out);
+                }
+                out.clear();
+            }
+            if ((inflater != null && !inflater.finished()) || !JCryptChecksum.matches(checksum, crc)) {
+                throw new JCryptUtil.Problem("Checksum (" + checksum + ") invalid ");
+            }
+            ok = true;
+        } catch (IOException e) {
+            throw new JCryptUtil.Problem("Cannot write to file \"" + target + "\"");
+        } catch (JCryptUtil.Problem e) {
+            throw e;
+        } catch (DataFormatException e) {
+            throw new JCryptUtil.Problem("Decryption failed (bad deflated data) ");
+        } catch (Exception e) {
+            JCryptUtil.discardCipher(password, Cipher.DECRYPT_MODE);
+            throw new JCryptUtil.Problem("Decryption failed ");
+        } finally {
+            if (inflater != null) {
+                inflater.end();
+                JCryptIO.release(clear);
+            }
+            JCryptIO.release(in);
+            JCryptIO.release(out);
+            JCryptIO.close(dst);
+            JCryptIO.close(src);
+            if (dst != null && !ok) {
+                new File(target).delete();
+            }
+        }
+    }
+
+    /**
+     * Re-encrypt a file written by encryptFile or JCryptUtil.writeEncryptedFile
+     * with a new password, block by block: the output of the decrypting cipher
+     * goes straight into the encrypting cipher, so the cleartext never exists
+     * as a whole. The cleartext is the same, and so is its checksum (CRC32 or
+     * CRC32C, as in the source): it is copied to the target first and verified
+     * once all blocks are through. Deflated files stay deflated (they are
+     * inflated only to verify the checksum).
+     * Note: the target file is deleted if decryption or the checksum test fails.
+     * @param oldPassword with which the source is encrypted
+     * @param newPassword with which the target is to be encrypted
+     * @param source name of the encrypted file
+     * @param target name of the re-encrypted file to write
+     */
+    public static void rekeyFile(String oldPassword, String newPassword, String source, String target) throws JCryptUtil.Problem {
+        Cipher decrypter = JCryptUtil.makeCipher(oldPassword, Cipher.DECRYPT_MODE);
+        Cipher encrypter = JCryptUtil.makeCipher(newPassword, Cipher.ENCRYPT_MODE);
+        Checksum crc = null;
+        Inflater inflater = null;
+        boolean ok = false;
+        boolean decrypted = false;
+        FileChannel src = JCryptIO.openForReading(source);
+        FileChannel dst = null;
+        ByteBuffer in = JCryptIO.acquire(BLOCK_SIZE);
+        ByteBuffer clear = JCryptIO.acquire(BLOCK_SIZE + OUTPUT_SLACK);
+        ByteBuffer out = JCryptIO.acquire(BLOCK_SIZE + 2 * OUTPUT_SLACK);
+        ByteBuffer inflated = null;
+        try {
+            long checksum = readChecksum(src, in, source);
+            crc = JCryptChecksum.forStored(checksum);
+            if (JCryptChecksum.isDeflated(checksum)) {
+                inflater = new Inflater();
+                inflated = JCryptIO.acquire(BLOCK_SIZE);
+            }
+            dst = JCryptIO.openForWriting(target);
+            out.putLong(checksum); // written with the first block
+            boolean more = true;
+            while (more) {
+                in.clear();
+                more = JCryptIO.readFully(src, in);
+                in.flip();
+                decrypter.update(in, clear);
+                if (!more) {
+                    decrypter.doFinal(in, clear);
+                    decrypted = true;
+                }
+                clear.flip();
+                if (inflater != null) {
+                    inflate(inflater, clear.duplicate(), inflated, crc, null);
+                } else {
+                    clear.mark();
+                    crc.update(clear);
+                    clear.reset();
+                }
+                encrypter.update(clear, out);
+                if (!more) {
+                    encrypter.doFinal(clear, out);
+                }
+                out.flip();
+                JCryptIO.writeFully(dst, out);
+                out.clear();
+                clear.clear();
+            }
+            if ((inflater != null && !inflater.finished()) || !JCryptChecksum.matches(checksum, crc)) {
+                throw new JCryptUtil.Problem("Checksum (" + checksum + ") invalid ");
+            }
+            ok = true;
+        } catch (IOException e) {
+            throw new JCryptUtil.Problem("Cannot write to file \"" + target + "\"");
+        } catch (JCryptUtil.Problem e) {
+            throw e;
+        } catch (DataFormatException e) {
+            throw new JCryptUtil.Problem("Decryption failed (bad deflated data) ");
+        } catch (Exception e) {
+            if (decrypted) {
+                JCryptUtil.discardCipher(newPassword, Cipher.ENCRYPT_MODE);
+                throw new JCryptUtil.Problem("Encryption failed");
+            }
+            JCryptUtil.discardCipher(oldPassword, Cipher.DECRYPT_MODE);
+            throw new JCryptUtil.Problem("Decryption failed ");
+        } finally {
+            if (inflater != null) {
+                inflater.end();
+                JCryptIO.release(inflated);
+            }
+            JCryptIO.release(in);
+            JCryptIO.release(clear);
+            JCryptIO.release(out);
+            JCryptIO.close(dst);
+            JCryptIO.close(src);
+            if (dst != null && !ok) {
+                new File(target).delete();
+            }
+        }
+    }
+
+    /**
+     * Inflate a block of deflated data and checksum the result, writing it to dst (if not null).
+     * @param packed the deflated data (all of it is consumed)
+     * @param clear buffer for the inflated data
+     */
+    private static void inflate(Inflater inflater, ByteBuffer packed, ByteBuffer clear, Checksum crc, FileChannel dst)
+            throws IOException, DataFormatException {
+        inflater.setInput(packed);
+        while (!inflater.needsInput() && !inflater.finished()) {
+            clear.clear().limit(BLOCK_SIZE); // (pooled buffers may be larger)
+            inflater.inflate(clear);
+            clear.flip();
+            clear.mark();
+            crc.update(clear);
+            clear.reset();
+            if (dst != null) {
+                JCryptIO.writeFully(dst, clear);
+            }
+        }
+        if (inflater.finished() && inflater.getRemaining() > 0) {
+            throw new DataFormatException("Data after the end of the deflated data");
+        }
+    }
+
+    private static long readChecksum(FileChannel in, ByteBuffer block, String filename) throws JCryptUtil.Problem {
+        try {
+            block.clear();
+            block.limit(8);
+            if (!JCryptIO.readFully(in, block)) {
+                throw new JCryptUtil.Problem("File \"" + filename + "\" is not a JCrypt file");
+            }
+        } catch (IOException e) {
+            throw new JCryptUtil.Problem("Cannot read from file \"" + filename + "\"");
+        }
+        block.flip();
+        return block.getLong();
+    }
+}
@@ -0,0 +1,667 @@
+package cp3.lab04.crypt;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Cipher suites for the versioned file format (--cipher), as an alternative to
+ * the legacy PBEWithMD5AndDES one.
+ *
+ * <pre>
+ * header:  magic "JCRS" (4) | version (1) | suite (1) | flags (1) | IV length (1)
+ *          | PBKDF2 iterations (4) | segment size (4) | batch salt (16) | file salt (16) | IV
+ * </pre>
+ * Keys are derived in two steps. PBKDF2-HMAC-SHA256 turns the password and
+ * the batch salt into a master key: this is deliberately slow (--kdf-iterations,
+ * 600000 by default), but all files encrypted in one run share the batch salt,
+ * and master keys are cached (JCryptKeyCache), so a batch pays for it once per
+ * password, whether encrypting or decrypting. Each file's key is then derived
+ * from the master key and the file's own random salt with HKDF-SHA256, which
+ * is cheap. Every file also has its own random IV. (Files of version 1 have no
+ * batch salt; their key is derived with PBKDF2 from the file salt.)
+ *
+ * If the flags have FLAG_DEFLATE set, the cleartext was deflated before it
+ * was encrypted (--compress), and is inflated after decryption.
+ *
+ * The rest of the file depends on the suite:
+ * <ul>
+ * <li>aes-gcm: the cleartext in segments of segment size bytes (the last one
+ * shorter, possibly empty), each encrypted with AES-256/GCM under the IV xor the
+ * segment's number, and followed by its 16-byte tag. The header and a final-
+ * segment flag are authenticated with each segment, so segments cannot be
+ * reordered, dropped or truncated unnoticed. Files are thus streamed and
+ * verified segment by segment, in constant memory.</li>
+ * <li>aes-ctr-hmac: the cleartext encrypted with AES-256/CTR, followed by an
+ * HMAC-SHA256 of the header and ciphertext. The HMAC is checked before any of
+ * the ciphertext is decrypted.</li>
+ * </ul>
+ * The JDK compiles AES, GCM and CTR to the CPU's AES instructions where there are
+ * any, which makes either suite several times faster than DES.
+ *
+ * <p>Legacy files start with 4 zero bytes, "JCRC" or "JCRZ", and chunked ones
+ * with "JCRX", so readers tell the formats apart by the first 4 bytes.
+ */
+abstract class JCryptSuite {
+
+    /** Names accepted by --cipher. */
+    static final String DES = "des";
+    static final String AES_GCM = "aes-gcm";
+    static final String AES_CTR_HMAC = "aes-ctr-hmac";
+
+    static final int MAGIC = 0x4a435253; // "JCRS"
+    static final int VERSION = 2;
+    static final int HEADER_SIZE = 48; // without the IV
+    static final int SALT_LENGTH = 16;
+    static final int MASTER_KEY_LENGTH = 32;
+    static final int FLAG_DEFLATE = 1;
+    static final int SEGMENT_SIZE = JCryptIO.BLOCK_SIZE;
+
+    /** Default PBKDF2 iterations for master keys. */
+    static final int ITERATIONS = 600000;
+
+    /**
+     * Most PBKDF2 iterations accepted, from --kdf-iterations or a file's header:
+     * a crafted header must not make the reader run PBKDF2 for hours.
+     */
+    static final int MAX_ITERATIONS = 10 * ITERATIONS;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static volatile int iterations = ITERATIONS;
+    private static byte[] batchSalt = null; // shared by the files encrypted until newBatch()
+    private static final JCryptSuite[] SUITES = { null, new AesGcm(), new AesCtrHmac() }; // by id
+
+    final int id;
+    final String name;
+    final int ivLength;
+    final int keyLength;
+
+    JCryptSuite(int id, String name, int ivLength, int keyLength) {
+        this.id = id;
+        this.name = name;
+        this.ivLength = ivLength;
+        this.keyLength = keyLength;
+    }
+
+    /**
+     * The suite with a --cipher name, or null for the legacy format (des) and unknown names.
+     */
+    static JCryptSuite forName(String name) {
+        for (JCryptSuite suite : SUITES) {
+            if (suite != null && suite.name.equals(name)) {
+                return suite;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The suite with an id stored in file headers.
+     */
+    static JCryptSuite forId(int id, String filename) throws JCryptUtil.Problem {
+        if (id <= 0 || id >= SUITES.length) {
+            throw new JCryptUtil.Problem("File \"" + filename + "\" uses an unknown cipher suite (" + id + ")");
+        }
+        return SUITES[id];
+    }
+
+    /**
+     * Layout and parameters of a file, as stored in its header.
+     */
+    static class Header {
+        JCryptSuite suite;
+        int version = VERSION;
+        int flags = 0;
+        int iterations;
+        int segmentSize = SEGMENT_SIZE;
+        byte[] batchSalt; // null in version 1
+        byte[] salt;
+        byte[] iv;
+
+        int size() {
+            return (batchSalt != null ? HEADER_SIZE : HEADER_SIZE - SALT_LENGTH) + iv.length;
+        }
+
+        byte[] bytes() {
+            ByteBuffer buf = ByteBuffer.allocate(size());
+            buf.putInt(MAGIC).put((byte) version).put((byte) suite.id).put((byte) flags).put((byte) iv.length);
+            buf.putInt(iterations).putInt(segmentSize);
+            if (batchSalt != null) {
+                buf.put(batchSalt);
+            }
+            buf.put(salt).put(iv);
+            return buf.array();
+        }
+
+        static Header read(ReadableByteChannel in, String filename) throws JCryptUtil.Problem, IOException {
+            ByteBuffer buf = ByteBuffer.allocate(16);
+            if (!fill(in, buf) || buf.getInt(0) != MAGIC) {
+                throw new JCryptUtil.Problem("File \"" + filename + "\" is not a JCrypt file");
+            }
+            buf.flip().getInt();
+            Header header = new Header();
+            header.version = buf.get();
+            header.suite = forId(buf.get(), filename);
+            header.flags = buf.get();
+            int ivLength = buf.get();
+            header.iterations = buf.getInt();
+            header.segmentSize = buf.getInt();
+            if ((header.version != 1 && header.version != VERSION) || ivLength != header.suite.ivLength
+                    || (header.flags & ~FLAG_DEFLATE) != 0
+                    || header.iterations <= 0 || header.iterations > MAX_ITERATIONS || header.segmentSize <= 0 || header.segmentSize > 1 << 24) {
+                throw new JCryptUtil.Problem("File \"" + filename + "\" has an unsupported format");
+            }
+            ByteBuffer rest = ByteBuffer.allocate((header.version > 1 ? SALT_LENGTH : 0) + SALT_LENGTH + ivLength);
+            if (!fill(in, rest)) {
+                throw new JCryptUtil.Problem("File \"" + filename + "\" is not a JCrypt file");
+            }
+            rest.flip();
+            if (header.version > 1) {
+                header.batchSalt = new byte[SALT_LENGTH];
+                rest.get(header.batchSalt);
+            }
+            header.salt = new byte[SALT_LENGTH];
+            rest.get(header.salt);
+            header.iv = new byte[ivLength];
+            rest.get(header.iv);
+            return header;
+        }
+    }
+
+    /**
+     * A new header for a file, with the batch salt and a fresh random salt and IV.
+     */
+    Header newHeader() {
+        Header header = new Header();
+        header.suite = this;
+        header.iterations = iterations;
+        header.batchSalt = batchSalt();
+        header.salt = new byte[SALT_LENGTH];
+        header.iv = new byte[ivLength];
+        RANDOM.nextBytes(header.salt);
+        RANDOM.nextBytes(header.iv);
+        return header;
+    }
+
+    /**
+     * PBKDF2 iterations for the master keys of files encrypted from now on.
+     */
+    static void setIterations(int count) {
+        iterations = count;
+    }
+
+    private static synchronized byte[] batchSalt() {
+        if (batchSalt == null) {
+            batchSalt = new byte[SALT_LENGTH];
+            RANDOM.nextBytes(batchSalt);
+        }
+        return batchSalt;
+    }
+
+    /**
+     * Start a new batch: files encrypted from now on get a new batch salt (and master key).
+     */
+    static synchronized void newBatch() {
+        batchSalt = null;
+    }
+
+    /**
+     * Check whether a file is in this versioned format (rather than the legacy or chunked one).
+     */
+    static boolean isSuiteFile(String filename) {
+        try (FileChannel in = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            return fill(in, magic) && magic.getInt(0) == MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Derive the key of a file: HKDF of the (cached) master key of the password
+     * and batch salt, with the file's salt.
+     */
+    static byte[] deriveKey(String password, Header header) throws GeneralSecurityException {
+        char[] chars = password.toCharArray();
+        try {
+            if (header.batchSalt == null) { // version 1: PBKDF2 for every file
+                return JCryptKeyCache.SHARED.pbkdf2(chars, header.salt, header.iterations, header.suite.keyLength);
+            }
+            byte[] master = JCryptKeyCache.SHARED.pbkdf2(chars, header.batchSalt, header.iterations, MASTER_KEY_LENGTH);
+            try {
+                return hkdf(master, header.salt, ("JCrypt " + header.suite.name).getBytes(StandardCharsets.US_ASCII),
+                        header.suite.keyLength);
+            } finally {
+                Arrays.fill(master, (byte) 0);
+            }
+        } finally {
+            Arrays.fill(chars, '\0');
+        }
+    }
+
+    /**
+     * HKDF-SHA256 (RFC 5869): extract a pseudorandom key from a secret and salt,
+     * and expand it into length bytes bound to info.
+     */
+    static byte[] hkdf(byte[] secret, byte[] salt, byte[] info, int length) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(salt, "HmacSHA256"));
+        byte[] prk = mac.doFinal(secret);
+        mac.init(new SecretKeySpec(prk, "HmacSHA256"));
+        Arrays.fill(prk, (byte) 0);
+        byte[] key = new byte[length];
+        byte[] block = new byte[0];
+        for (int i = 1, done = 0; done < length; i++) {
+            mac.update(block);
+            mac.update(info);
+            mac.update((byte) i);
+            block = mac.doFinal();
+            int n = Math.min(block.length, length - done);
+            System.arraycopy(block, 0, key, done, n);
+            done += n;
+        }
+        Arrays.fill(block, (byte) 0);
+        return key;
+    }
+
+    /**
+     * Encrypt a file into this suite's format, block by block.
+     * @param password with which the cleartext is to be encrypted
+     * @param source name of the cleartext file
+     * @param target name of the encrypted file to write
+     * @param level Deflater level to compress the cleartext with first (1-9), or 0 not to
+     */
+    void encryptFile(String password, String source, String target, int level) throws JCryptUtil.Problem {
+        boolean ok = false;
+        FileChannel src = JCryptIO.openForReading(source);
+        FileChannel dst = null;
+        Deflater deflater = level > 0 ? new Deflater(level) : null;
+        byte[] key = null;
+        try {
+            Header header = newHeader();
+            if (deflater != null) {
+                header.flags |= FLAG_DEFLATE;
+            }
+            key = deriveKey(password, header);
+            dst = JCryptIO.openForWriting(target);
+            JCryptIO.writeFully(dst, ByteBuffer.wrap(header.bytes()));
+            encrypt(header, key, deflater != null ? JCryptCompress.deflating(src, deflater) : src, dst);
+            ok = true;
+        } catch (IOException e) {
+            throw new JCryptUtil.Problem("Cannot write to file \"" + target + "\"");
+        } catch (GeneralSecurityException e) {
+            throw new JCryptUtil.Problem("Encryption failed");
+        } finally {
+            if (key != null) {
+                Arrays.fill(key, (byte) 0);
+            }
+            if (deflater != null) {
+                deflater.end();
+            }
+            JCryptIO.close(dst);
+            JCryptIO.close(src);
+            if (dst != null && !ok) {
+                new File(target).delete();
+            }
+        }
+    }
+
+    /**
+     * Decrypt a file in any suite's format, block by block.
+     * Note: the target file is deleted if decryption or authentication fails.
+     * @param password with which the file is encrypted
+     * @param source name of the encrypted file
+     * @param target name of the cleartext file to write
+     */
+    static void decryptFile(String password, String source, String target) throws JCryptUtil.Problem {
+        boolean ok = false;
+        FileChannel src = JCryptIO.openForReading(source);
+        FileChannel dst = null;
+        Inflater inflater = null;
+        byte[] key = null;
+        try {
+            Header header = Header.read(src, source);
+            key = deriveKey(password, header);
+            dst = JCryptIO.openForWriting(target);
+            if ((header.flags & FLAG_DEFLATE) != 0) {
+                inflater = new Inflater();
+                WritableByteChannel out = JCryptCompress.inflating(dst, inflater);
+                header.suite.decrypt(header, key, src, src.size() - header.size(), out);
+                out.close(); // checks that the deflated data is complete
+            } else {
+                header.suite.decrypt(header, key, src, src.size() - header.size(), dst);
+            }
+            ok = true;
+        } catch (ZipException e) {
+            throw new JCryptUtil.Problem("Decryption failed (bad deflated data) ");
+        } catch (IOException e) {
+            throw new JCryptUtil.Problem("Cannot write to file \"" + target + "\"");
+        } catch (GeneralSecurityException e) {
+            throw new JCryptUtil.Problem("Decryption failed ");
+        } finally {
+            if (key != null) {
+                Arrays.fill(key, (byte) 0);
+            }
+            if (inflater != null) {
+                inflater.end();
+            }
+            JCryptIO.close(dst);
+            JCryptIO.close(src);
+            if (dst != null && !ok) {
+                new File(target).delete();
+            }
+        }
+    }
+
+    /**
+     * Encrypt data in memory into this suite's format.
+     * @return the whole encrypted file (header included)
+     */
+    byte[] encrypt(String password, byte[] cleartext) throws JCryptUtil.Problem {
+        byte[] key = null;
+        try {
+            Header header = newHeader();
+            key = deriveKey(password, header);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(cleartext.length + cleartext.length / 256 + 256);
+            bytes.write(header.bytes());
+            encrypt(header, key, Channels.newChannel(new ByteArrayInputStream(cleartext)), Channels.newChannel(bytes));
+            return bytes.toByteArray();
+        } catch (IOException | GeneralSecurityException e) {
+            throw new JCryptUtil.Problem("Encryption failed");
+        } finally {
+            if (key != null) {
+                Arrays.fill(key, (byte) 0);
+            }
+        }
+    }
+
+    /**
+     * Decrypt a whole file in any suite's format, in memory.
+     * @param data the encrypted file (header included)
+     */
+    static byte[] decrypt(String password, byte[] data) throws JCryptUtil.Problem {
+        byte[] key = null;
+        try {
+            ReadableByteChannel in = Channels.newChannel(new ByteArrayInputStream(data));
+            Header header = Header.read(in, "(data)");
+            key = deriveKey(password, header);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length);
+            header.suite.decrypt(header, key, in, data.length - header.size(), Channels.newChannel(bytes));
+            if ((header.flags & FLAG_DEFLATE) != 0) {
+                return JCryptCompress.inflate(bytes.toByteArray(), 0, bytes.size());
+            }
+            return bytes.toByteArray();
+        } catch (IOException | GeneralSecurityException | DataFormatException e) {
+            throw new JCryptUtil.Problem("Decryption failed ");
+        } finally {
+            if (key != null) {
+                Arrays.fill(key, (byte) 0);
+            }
+        }
+    }
+
+    /**
+     * Encrypt everything from in to out (after the header).
+     */
+    protected abstract void encrypt(Header header, byte[] key, ReadableByteChannel in, WritableByteChannel out)
+            throws IOException, GeneralSecurityException;
+
+    /**
+     * Decrypt and authenticate the rest of a file (after the header).
+     * @param length bytes left in the file
+     */
+    protected abstract void decrypt(Header header, byte[] key, ReadableByteChannel in, long length, WritableByteChannel out)
+            throws IOException, GeneralSecurityException;
+
+    /**
+     * Read until buf is full.
+     * @return false if the end of the input came first
+     */
+    static boolean fill(ReadableByteChannel in, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (in.read(buf) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static void drain(WritableByteChannel out, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            out.write(buf);
+        }
+    }
+
+    /**
+     * AES-256/GCM in independently authenticated segments.
+     */
+    static class AesGcm extends JCryptSuite {
+        static final int TAG_LENGTH = 16;
+
+        AesGcm() {
+            super(1, AES_GCM, 12, 32);
+        }
+
+        /** IV of a segment: the file's IV with its last 8 bytes xor the segment number. */
+        private static GCMParameterSpec segmentIv(byte[] iv, long segment) {
+            byte[] nonce = iv.clone();
+            for (int i = 0; i < 8; i++) {
+                nonce[nonce.length - 1 - i] ^= (byte) (segment >>> (8 * i));
+            }
+            return new GCMParameterSpec(TAG_LENGTH * 8, nonce);
+        }
+
+        private static void start(Cipher cipher, int opmode, SecretKeySpec key, Header header, byte[] aad, long segment, boolean last)
+                throws GeneralSecurityException {
+            cipher.init(opmode, key, segmentIv(header.iv, segment));
+            cipher.updateAAD(aad);
+            cipher.updateAAD(new byte[] { (byte) (last ? 1 : 0) });
+        }
+
+        @Override
+        protected void encrypt(Header header, byte[] key, ReadableByteChannel in, WritableByteChannel out)
+                throws IOException, GeneralSecurityException {
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            SecretKeySpec spec = new SecretKeySpec(key, 0, keyLength, "AES");
+            byte[] aad = header.bytes();
+            ByteBuffer clear = JCryptIO.acquire(header.segmentSize);
+            ByteBuffer sealed = JCryptIO.acquire(header.segmentSize + TAG_LENGTH);
+            try {
+                boolean last = false;
+                for (long segment = 0; !last; segment++) {
+                    clear.clear().limit(header.segmentSize); // (pooled buffers may be larger)
+                    last = !fill(in, clear); // a short segment is the last one
+                    clear.flip();
+                    start(cipher, Cipher.ENCRYPT_MODE, spec, header, aad, segment, last);
+                    sealed.clear();
+                    cipher.doFinal(clear, sealed);
+                    sealed.flip();
+                    drain(out, sealed);
+                }
+            } finally {
+                JCryptIO.release(clear);
+                JCryptIO.release(sealed);
+            }
+        }
+
+        @Override
+        protected void decrypt(Header header, byte[] key, ReadableByteChannel in, long length, WritableByteChannel out)
+                throws IOException, GeneralSecurityException {
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            SecretKeySpec spec = new SecretKeySpec(key, 0, keyLength, "AES");
+            byte[] aad = header.bytes();
+            ByteBuffer sealed = JCryptIO.acquire(header.segmentSize + TAG_LENGTH);
+            ByteBuffer clear = JCryptIO.acquire(header.segmentSize + TAG_LENGTH);
+            try {
+                boolean last = false;
+                for (long segment = 0; !last; segment++) {
+                    sealed.clear().limit(header.segmentSize + TAG_LENGTH);
+                    last = !fill(in, sealed);
+                    sealed.flip();
+                    if (sealed.remaining() < TAG_LENGTH) {
+                        throw new AEADBadTagException("File truncated");
+                    }
+                    start(cipher, Cipher.DECRYPT_MODE, spec, header, aad, segment, last);
+                    clear.clear();
+                    cipher.doFinal(sealed, clear);
+                    clear.flip();
+                    drain(out, clear);
+                }
+            } finally {
+                JCryptIO.release(sealed);
+                JCryptIO.release(clear);
+            }
+        }
+    }
+
+    /**
+     * AES-256/CTR, authenticated by an HMAC-SHA256 (encrypt-then-MAC).
+     * The key is 64 bytes: the AES key, then the HMAC key.
+     */
+    static class AesCtrHmac extends JCryptSuite {
+        static final int TAG_LENGTH = 32;
+
+        AesCtrHmac() {
+            super(2, AES_CTR_HMAC, 16, 64);
+        }
+
+        @Override
+        protected void encrypt(Header header, byte[] key, ReadableByteChannel in, WritableByteChannel out)
+                throws IOException, GeneralSecurityException {
+            Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, 0, 32, "AES"), new IvParameterSpec(header.iv));
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, 32, 32, "HmacSHA256"));
+            mac.update(header.bytes());
+            ByteBuffer clear = JCryptIO.acquire(header.segmentSize);
+            ByteBuffer sealed = JCryptIO.acquire(header.segmentSize);
+            try {
+                boolean more = true;
+                while (more) {
+                    clear.clear().limit(header.segmentSize);
+                    more = fill(in, clear);
+                    clear.flip();
+                    sealed.clear();
+                    cipher.update(clear, sealed);
+                    sealed.flip();
+                    sealed.mark();
+                    mac.update(sealed);
+                    sealed.reset();
+                    drain(out, sealed);
+                }
+                drain(out, ByteBuffer.wrap(mac.doFinal()));
+            } finally {
+                JCryptIO.release(clear);
+                JCryptIO.release(sealed);
+            }
+        }
+
+        /**
+         * Check the HMAC over the whole ciphertext before decrypting any of it,
+         * so no unauthenticated cleartext is ever written out. Files are read
+         * twice (the second time mostly from the page cache); other inputs are
+         * held in memory until they are authenticated.
+         */
+        @Override
+        protected void decrypt(Header header, byte[] key, ReadableByteChannel in, long length, WritableByteChannel out)
+                throws IOException, GeneralSecurityException {
+            if (length < TAG_LENGTH) {
+                throw new AEADBadTagException("File truncated");
+            }
+            if (in instanceof SeekableByteChannel) {
+                SeekableByteChannel file = (SeekableByteChannel) in;
+                long start = file.position();
+                authenticate(header, key, in, length);
+                file.position(start);
+            } else {
+                if (length > Integer.MAX_VALUE - 8) {
+                    throw new IOException("Stream too large to authenticate");
+                }
+                ByteBuffer all = ByteBuffer.allocate((int) length);
+                if (!fill(in, all)) {
+                    throw new AEADBadTagException("File truncated");
+                }
+                authenticate(header, key, Channels.newChannel(new ByteArrayInputStream(all.array())), length);
+                in = Channels.newChannel(new ByteArrayInputStream(all.array()));
+            }
+            Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, 0, 32, "AES"), new IvParameterSpec(header.iv));
+            ByteBuffer sealed = JCryptIO.acquire(header.segmentSize);
+            ByteBuffer clear = JCryptIO.acquire(header.segmentSize);
+            try {
+                long left = length - TAG_LENGTH;
+                while (left > 0) {
+                    sealed.clear();
+                    sealed.limit((int) Math.min(header.segmentSize, left));
+                    if (!fill(in, sealed)) {
+                        throw new AEADBadTagException("File truncated");
+                    }
+                    sealed.flip();
+                    left -= sealed.remaining();
+                    clear.clear();
+                    cipher.update(sealed, clear);
+                    clear.flip();
+                    drain(out, clear);
+                }
+            } finally {
+                JCryptIO.release(sealed);
+                JCryptIO.release(clear);
+            }
+        }
+
+        /**
+         * Read the ciphertext and its tag, and check the HMAC of the header and ciphertext.
+         */
+        private static void authenticate(Header header, byte[] key, ReadableByteChannel in, long length)
+                throws IOException, GeneralSecurityException {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, 32, 32, "HmacSHA256"));
+            mac.update(header.bytes());
+            ByteBuffer sealed = JCryptIO.acquire(header.segmentSize);
+            try {
+                long left = length - TAG_LENGTH;
+                while (left > 0) {
+                    sealed.clear();
+                    sealed.limit((int) Math.min(header.segmentSize, left));
+                    if (!fill(in, sealed)) {
+                        throw new AEADBadTagException("File truncated");
+                    }
+                    sealed.flip();
+                    left -= sealed.remaining();
+                    mac.update(sealed);
+                }
+                ByteBuffer tag = ByteBuffer.allocate(TAG_LENGTH);
+                if (!fill(in, tag) || !MessageDigest.isEqual(tag.array(), mac.doFinal())) {
+                    throw new AEADBadTagException("HMAC mismatch");
+                }
+            } finally {
+                JCryptIO.release(sealed);
+            }
+        }
+    }
+}
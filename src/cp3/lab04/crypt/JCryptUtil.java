@@ -2,20 +2,21 @@ package cp3.lab04.crypt;
 
 import jargs.gnu.CmdLineParser;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.ByteBuffer;
-import java.util.zip.CRC32;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Checksum;
+import java.util.zip.DataFormatException;
 
 import javax.crypto.Cipher;
-import javax.crypto.SecretKey;
-import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.PBEParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 
 /**
  * Static methods for encrypting/decrypting/reading/writing files
@@ -33,17 +34,47 @@ public class JCryptUtil {
      * @return decrypted cleartext as an array of bytes
      */
     protected static byte[] decrypt(String password, EncryptedData ciphertext) throws Problem {
+        if (ciphertext.suite != null) { // versioned format: the suite authenticates the data itself
+            return JCryptSuite.decrypt(password, ciphertext.content);
+        }
         Cipher cipher = makeCipher(password, Cipher.DECRYPT_MODE);
+        if (JCryptChecksum.isDeflated(ciphertext.checksum)) {
+            return decryptDeflated(password, cipher, ciphertext);
+        }
+        Checksum crc = JCryptChecksum.forStored(ciphertext.checksum);
         byte[] decryptedData;
 
         try {
-            decryptedData = cipher.doFinal(ciphertext.content);
+            decryptedData = new byte[cipher.getOutputSize(ciphertext.content.length)];
+            int length = JCryptChecksum.doFinal(cipher, ciphertext.content, ciphertext.content.length, decryptedData, crc, false);
+            if (length != decryptedData.length) {
+                decryptedData = Arrays.copyOf(decryptedData, length);
+            }
+        } catch (Exception e) {
+            discardCipher(password, Cipher.DECRYPT_MODE);
+            throw new Problem("Decryption failed ");
+        }
+        if (JCryptChecksum.stored(crc) != ciphertext.checksum) {
+            throw new Problem("Checksum (" + ciphertext.checksum + ") invalid ");
+        }
+        return decryptedData;
+    }
+
+    /**
+     * Decrypt and inflate data that was deflated before it was encrypted.
+     */
+    private static byte[] decryptDeflated(String password, Cipher cipher, EncryptedData ciphertext) throws Problem {
+        byte[] decryptedData;
+        try {
+            byte[] deflated = cipher.doFinal(ciphertext.content);
+            decryptedData = JCryptCompress.inflate(deflated, 0, deflated.length);
+        } catch (DataFormatException e) {
+            throw new Problem("Decryption failed (bad deflated data) ");
         } catch (Exception e) {
+            discardCipher(password, Cipher.DECRYPT_MODE);
             throw new Problem("Decryption failed ");
         }
-        CRC32 crc = new CRC32();
-        crc.update(decryptedData, 0, decryptedData.length);
-        if (crc.getValue() != ciphertext.checksum) {
+        if (!JCryptChecksum.matches(ciphertext.checksum, decryptedData, 0, decryptedData.length)) {
             throw new Problem("Checksum (" + ciphertext.checksum + ") invalid ");
         }
         return decryptedData;
@@ -58,40 +89,257 @@ public class JCryptUtil {
     protected static EncryptedData encrypt(String password, byte[] cleartext) throws Problem {
         Cipher cipher = makeCipher(password, Cipher.ENCRYPT_MODE);
         EncryptedData data = new EncryptedData();
-        CRC32 crc = new CRC32();
-        crc.update(cleartext, 0, cleartext.length);
-        data.checksum = crc.getValue();
+        Checksum crc = JCryptChecksum.create();
         try {
-            data.content = cipher.doFinal(cleartext);
+            data.content = new byte[cipher.getOutputSize(cleartext.length)];
+            JCryptChecksum.doFinal(cipher, cleartext, cleartext.length, data.content, crc, true);
         } catch (Exception e) {
+            discardCipher(password, Cipher.ENCRYPT_MODE);
             throw new Problem("Encryption failed");
         }
+        data.checksum = JCryptChecksum.stored(crc);
         return data;
     }
 
+    /**
+     * Encrypt a block of data with a cipher suite.
+     * @param cipher name of the suite (see JCryptSuite), or "des" for the legacy format
+     * @param password with which the cleartext is to be encrypted
+     * @param cleartext original unencrypted source data
+     * @return object containing the data in encrypted form
+     */
+    protected static EncryptedData encrypt(String cipher, String password, byte[] cleartext) throws Problem {
+        JCryptSuite suite = JCryptSuite.forName(cipher);
+        if (suite == null) {
+            return encrypt(password, cleartext);
+        }
+        EncryptedData data = new EncryptedData();
+        data.suite = suite;
+        data.content = suite.encrypt(password, cleartext);
+        return data;
+    }
+
+    /** Password-based encryption scheme used for legacy JCrypt files. */
+    static final String ALGORITHM = "PBEWithMD5AndDES";
+
+    /** Salt and iteration count shared by all JCrypt files. */
+    private static final byte[] PBE_SALT = new byte[]{
+            (byte)0x37, (byte)0x73, (byte)0xf1, (byte)0x2b,
+            (byte)0xff, (byte)0x98, (byte)0xd5, (byte)0xa9 };
+    static final PBEParameterSpec PBE_PARAMS = new PBEParameterSpec(PBE_SALT, 20);
+
     /**
      * Generate a cipher from the specified password.
+     * Keys and ciphers are cached (see JCryptKeyCache), so the returned Cipher
+     * belongs to the calling thread and must not be shared.
      * @param password with which to encrypt
      * @param opmode Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE expected
      * @return Cipher object to use for encryption/decryption
      */
-    private static Cipher makeCipher(String password, int opmode) throws Problem {
+    static Cipher makeCipher(String password, int opmode) throws Problem {
         char[] sharedKey = password.toCharArray();
-        PBEParameterSpec pbeParamSpec = new PBEParameterSpec(new byte[]{
-                (byte)0x37, (byte)0x73, (byte)0xf1, (byte)0x2b,
-                (byte)0xff, (byte)0x98, (byte)0xd5, (byte)0xa9 }, 20);
-        PBEKeySpec pbeKeySpec = new PBEKeySpec(sharedKey);
-        SecretKey pbeKey;
         try {
-            pbeKey = SecretKeyFactory.getInstance("PBEWithMD5AndDES").generateSecret(pbeKeySpec);
-            Cipher cipher = Cipher.getInstance("PBEWithMD5AndDES");
-            cipher.init(opmode, pbeKey, pbeParamSpec);
-            return cipher;
+            return makeCipher(sharedKey, opmode);
+        } finally {
+            Arrays.fill(sharedKey, '\0');
+        }
+    }
+
+    /**
+     * Generate a cipher from the specified password.
+     * @param password with which to encrypt (not retained)
+     * @param opmode Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE expected
+     * @return Cipher object to use for encryption/decryption
+     */
+    static Cipher makeCipher(char[] password, int opmode) throws Problem {
+        try {
+            return JCryptKeyCache.SHARED.cipher(ALGORITHM, password, opmode, PBE_PARAMS);
         } catch (Exception e) {
             throw new Problem("Bad password");
         }
     }
 
+    /**
+     * Drop a cipher returned by makeCipher after an operation on it failed,
+     * so that the next call starts from a freshly initialised one.
+     */
+    static void discardCipher(String password, int opmode) {
+        char[] sharedKey = password.toCharArray();
+        JCryptKeyCache.SHARED.discard(ALGORITHM, sharedKey, opmode, PBE_PARAMS);
+        Arrays.fill(sharedKey, '\0');
+    }
+
+    /**
+     * Forget all cached keys and ciphers, zeroing the cached key material.
+     * Call at the end of a batch.
+     */
+    protected static void clearKeyCache() {
+        JCryptKeyCache.SHARED.clear();
+        JCryptSuite.newBatch();
+    }
+
+    /**
+     * Derive the DES key and IV that PBEWithMD5AndDES (PKCS#5 PBKDF1) derives from
+     * a password with the JCrypt salt and iteration count.
+     * @param password password bytes (ASCII characters)
+     * @param length number of password bytes to use
+     * @param md5 MD5 digest to use
+     * @param derived receives the 8-byte key followed by the 8-byte IV
+     */
+    static void derivePbeKey(byte[] password, int length, MessageDigest md5, byte[] derived) throws GeneralSecurityException {
+        md5.update(password, 0, length);
+        md5.update(PBE_SALT);
+        md5.digest(derived, 0, 16);
+        for (int i = 1; i < PBE_PARAMS.getIterationCount(); i++) {
+            md5.update(derived, 0, 16);
+            md5.digest(derived, 0, 16);
+        }
+    }
+
+    /**
+     * Derive the DES key and IV that makeCipher's PBEWithMD5AndDES uses for a password.
+     * @return the 8-byte key followed by the 8-byte IV
+     */
+    static byte[] pbeKeyAndIv(String password) throws Problem {
+        byte[] bytes = new byte[password.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            char c = password.charAt(i);
+            if (c < 0x20 || c > 0x7e) {
+                throw new Problem("Bad password");
+            }
+            bytes[i] = (byte) c;
+        }
+        byte[] derived = new byte[16];
+        try {
+            derivePbeKey(bytes, bytes.length, MessageDigest.getInstance("MD5"), derived);
+        } catch (GeneralSecurityException e) {
+            throw new Problem("Bad password");
+        } finally {
+            Arrays.fill(bytes, (byte) 0);
+        }
+        return derived;
+    }
+
+    /**
+     * Tests guessed passwords against encrypted files.
+     * A guess is turned into a key once by derive() and can then be tried on
+     * any number of files with attempt(). Each attempt first decrypts only the
+     * final ciphertext block and tests its PKCS#5 padding, which rejects ~255/256
+     * wrong guesses in constant time; only survivors are fully decrypted and
+     * checked against the stored checksum.
+     * Not thread-safe: each cracking thread needs its own instance.
+     */
+    protected static class Guesser {
+        private final MessageDigest md5;
+        private final Cipher block;
+        private final Cipher cipher;
+        private final byte[] derived = new byte[16];
+        private final byte[] last = new byte[8];
+        private byte[] passwordBytes = new byte[32];
+
+        protected Guesser() throws Problem {
+            try {
+                md5 = MessageDigest.getInstance("MD5");
+                block = Cipher.getInstance("DES/ECB/NoPadding");
+                cipher = Cipher.getInstance("DES/CBC/PKCS5Padding");
+            } catch (Exception e) {
+                throw new Problem("Cipher " + ALGORITHM + " not available");
+            }
+        }
+
+        /**
+         * Check that encrypted data could have been produced by JCrypt at all.
+         */
+        protected static void check(EncryptedData ciphertext) throws Problem {
+            if (ciphertext.suite != null) {
+                throw new Problem("Encrypted data uses " + ciphertext.suite.name + ", which cannot be cracked");
+            }
+            if (ciphertext.content.length == 0 || ciphertext.content.length % 8 != 0) {
+                throw new Problem("Encrypted data is corrupt (length " + ciphertext.content.length + ")");
+            }
+        }
+
+        /**
+         * Derive the key for a guessed password.
+         * @param password the guess
+         * @return false if the guess cannot be a JCrypt password
+         */
+        protected boolean derive(char[] password) {
+            if (passwordBytes.length < password.length) {
+                passwordBytes = new byte[password.length];
+            }
+            for (int i = 0; i < password.length; i++) {
+                if (password[i] > 0x7e) {
+                    return false; // PBE keys only accept printable ASCII
+                }
+                passwordBytes[i] = (byte) password[i];
+            }
+            return derive(passwordBytes, password.length);
+        }
+
+        /**
+         * Derive the key for a guessed password.
+         * @param password the guess as ASCII bytes
+         * @param length number of bytes of the guess
+         * @return false if the guess cannot be a JCrypt password
+         */
+        protected boolean derive(byte[] password, int length) {
+            for (int i = 0; i < length; i++) {
+                if (password[i] < 0x20 || password[i] > 0x7e) {
+                    return false; // PBE keys only accept printable ASCII
+                }
+            }
+            try {
+                derivePbeKey(password, length, md5, derived);
+                block.init(Cipher.DECRYPT_MODE, new SecretKeySpec(derived, 0, 8, "DES"));
+                return true;
+            } catch (GeneralSecurityException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Try to decrypt with the key of the last derived guess.
+         * @param ciphertext data that passed check()
+         * @return decrypted cleartext if the guess is right (checksum matches), otherwise null
+         */
+        protected byte[] attempt(EncryptedData ciphertext) {
+            try {
+                if (!plausible(ciphertext.content)) {
+                    return null;
+                }
+                cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(derived, 0, 8, "DES"),
+                        new IvParameterSpec(derived, 8, 8));
+                byte[] decryptedData = cipher.doFinal(ciphertext.content);
+                if (JCryptChecksum.isDeflated(ciphertext.checksum)) {
+                    decryptedData = JCryptCompress.inflate(decryptedData, 0, decryptedData.length);
+                }
+                return JCryptChecksum.matches(ciphertext.checksum, decryptedData, 0, decryptedData.length) ? decryptedData : null;
+            } catch (Exception e) {
+                return null; // bad padding or deflated data: wrong password
+            }
+        }
+
+        /**
+         * Decrypt just the final CBC block and check for valid PKCS#5 padding.
+         */
+        private boolean plausible(byte[] content) throws GeneralSecurityException {
+            int offset = content.length - 8;
+            block.doFinal(content, offset, 8, last, 0);
+            int pad = (last[7] ^ (offset == 0 ? derived[15] : content[offset - 1])) & 0xff;
+            if (pad < 1 || pad > 8) {
+                return false;
+            }
+            for (int i = 8 - pad; i < 8; i++) {
+                byte previous = offset == 0 ? derived[8 + i] : content[offset - 8 + i];
+                if (((last[i] ^ previous) & 0xff) != pad) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
     /**
      * Parse command-line options for encrypting/decrypting files.
      * @param args command-line arguments
@@ -101,11 +349,40 @@ public class JCryptUtil {
         Options opts = new Options();
 
         CmdLineParser parser = new CmdLineParser();
-        CmdLineParser.Option cmdCrack = parser.addBooleanOption('c', "crack");
+        CmdLineParser.Option cmdCrack = parser.addIntegerOption('c', "crack");
+        CmdLineParser.Option cmdCharset = parser.addStringOption("charset");
+        CmdLineParser.Option cmdMinLength = parser.addIntegerOption("min-length");
+        CmdLineParser.Option cmdMaxLength = parser.addIntegerOption("max-length");
+        CmdLineParser.Option cmdWordlist = parser.addStringOption('w', "wordlist");
+        CmdLineParser.Option cmdRules = parser.addStringOption('r', "rules");
+        CmdLineParser.Option cmdCheckpoint = parser.addStringOption("checkpoint");
+        CmdLineParser.Option cmdCheckpointInterval = parser.addIntegerOption("checkpoint-interval");
+        CmdLineParser.Option cmdResume = parser.addStringOption("resume");
         CmdLineParser.Option cmdSave = parser.addBooleanOption('s', "save");
         CmdLineParser.Option cmdDecrypt = parser.addStringOption('d', "decrypt");
         CmdLineParser.Option cmdEncrypt = parser.addStringOption('e', "encrypt");
         CmdLineParser.Option cmdThreads = parser.addIntegerOption('t', "threads");
+        CmdLineParser.Option cmdStream = parser.addLongOption('b', "stream-threshold");
+        CmdLineParser.Option cmdParallel = parser.addLongOption('p', "parallel-threshold");
+        CmdLineParser.Option cmdChunkSize = parser.addIntegerOption("chunk-size");
+        CmdLineParser.Option cmdMmap = parser.addBooleanOption('m', "mmap");
+        CmdLineParser.Option cmdSchedule = parser.addStringOption("schedule");
+        CmdLineParser.Option cmdVirtual = parser.addBooleanOption("virtual-threads");
+        CmdLineParser.Option cmdPipeline = parser.addStringOption("pipeline");
+        CmdLineParser.Option cmdHeapBuffers = parser.addBooleanOption("heap-buffers");
+        CmdLineParser.Option cmdBufferStats = parser.addBooleanOption("buffer-stats");
+        CmdLineParser.Option cmdLogLevel = parser.addStringOption("log-level");
+        CmdLineParser.Option cmdStdout = parser.addStringOption("stdout");
+        CmdLineParser.Option cmdOutput = parser.addStringOption('o', "output");
+        CmdLineParser.Option cmdRecursive = parser.addBooleanOption('R', "recursive");
+        CmdLineParser.Option cmdInclude = parser.addStringOption("include");
+        CmdLineParser.Option cmdExclude = parser.addStringOption("exclude");
+        CmdLineParser.Option cmdManifest = parser.addStringOption("manifest");
+        CmdLineParser.Option cmdCipher = parser.addStringOption("cipher");
+        CmdLineParser.Option cmdKdfIterations = parser.addIntegerOption("kdf-iterations");
+        CmdLineParser.Option cmdCompress = parser.addIntegerOption("compress");
+        CmdLineParser.Option cmdArchive = parser.addStringOption("archive");
+        CmdLineParser.Option cmdList = parser.addBooleanOption("list");
 
         try {
             parser.parse(args);
@@ -115,14 +392,121 @@ public class JCryptUtil {
             System.exit(1);
         }
 
-        opts.crack = (Boolean)parser.getOptionValue(cmdCrack, false);
+        Integer crackThreads = (Integer)parser.getOptionValue(cmdCrack);
+        opts.crack = crackThreads != null;
+        opts.crackThreads = opts.crack ? crackThreads : 0;
+        opts.charset = (String)parser.getOptionValue(cmdCharset, opts.charset);
+        opts.minLength = (Integer)parser.getOptionValue(cmdMinLength, opts.minLength);
+        opts.maxLength = (Integer)parser.getOptionValue(cmdMaxLength, opts.maxLength);
+        opts.wordlist = (String)parser.getOptionValue(cmdWordlist, opts.wordlist);
+        opts.rules = (String)parser.getOptionValue(cmdRules, opts.rules);
+        opts.checkpointFile = (String)parser.getOptionValue(cmdCheckpoint, opts.checkpointFile);
+        opts.checkpointInterval = (Integer)parser.getOptionValue(cmdCheckpointInterval, opts.checkpointInterval);
+        opts.resumeFile = (String)parser.getOptionValue(cmdResume, opts.resumeFile);
         opts.saveToFile = (Boolean)parser.getOptionValue(cmdSave, false);
         opts.decryptionPassword = (String)parser.getOptionValue(cmdDecrypt, "");
         opts.encryptionPassword = (String)parser.getOptionValue(cmdEncrypt, "");
         opts.threads = (Integer)parser.getOptionValue(cmdThreads, 0);
+        opts.streamThreshold = (Long)parser.getOptionValue(cmdStream, opts.streamThreshold);
+        opts.parallelThreshold = (Long)parser.getOptionValue(cmdParallel, opts.parallelThreshold);
+        opts.chunkSize = (Integer)parser.getOptionValue(cmdChunkSize, opts.chunkSize);
+        opts.mmap = (Boolean)parser.getOptionValue(cmdMmap, false);
+        opts.schedule = (String)parser.getOptionValue(cmdSchedule, opts.schedule);
+        opts.virtualThreads = (Boolean)parser.getOptionValue(cmdVirtual, false);
+        String pipeline = (String)parser.getOptionValue(cmdPipeline);
+        opts.heapBuffers = (Boolean)parser.getOptionValue(cmdHeapBuffers, false);
+        opts.bufferStats = (Boolean)parser.getOptionValue(cmdBufferStats, false);
+        String logLevel = (String)parser.getOptionValue(cmdLogLevel, opts.logLevel.name());
+        opts.stdoutFormat = (String)parser.getOptionValue(cmdStdout, opts.stdoutFormat);
+        opts.outputDirectory = (String)parser.getOptionValue(cmdOutput, opts.outputDirectory);
+        opts.recursive = (Boolean)parser.getOptionValue(cmdRecursive, false);
+        opts.includes = stringValues(parser, cmdInclude);
+        opts.excludes = stringValues(parser, cmdExclude);
+        opts.manifestFile = (String)parser.getOptionValue(cmdManifest, opts.manifestFile);
+        opts.cipher = (String)parser.getOptionValue(cmdCipher, opts.cipher);
+        opts.kdfIterations = (Integer)parser.getOptionValue(cmdKdfIterations, opts.kdfIterations);
+        opts.compression = (Integer)parser.getOptionValue(cmdCompress, opts.compression);
+        opts.archive = (String)parser.getOptionValue(cmdArchive, opts.archive);
+        opts.list = (Boolean)parser.getOptionValue(cmdList, false);
         opts.filenames = parser.getRemainingArgs();
 
-        if (opts.filenames.length == 0) {
+        if (opts.chunkSize <= 0 || opts.chunkSize % 8 != 0 || opts.chunkSize > JCryptChunked.MAX_CHUNK_SIZE) {
+            System.err.println("ERROR: --chunk-size must be a multiple of 8 from 8 to " + JCryptChunked.MAX_CHUNK_SIZE);
+            printUsage();
+            System.exit(1);
+        }
+
+        if (pipeline != null) {
+            try {
+                String[] stages = pipeline.split(",");
+                opts.pipeline = new int[] { Integer.parseInt(stages[0].trim()), Integer.parseInt(stages[1].trim()),
+                        Integer.parseInt(stages[2].trim()) };
+                if (stages.length != 3 || opts.pipeline[0] < 1 || opts.pipeline[1] < 1 || opts.pipeline[2] < 1) {
+                    throw new NumberFormatException();
+                }
+            } catch (RuntimeException e) {
+                System.err.println("ERROR: --pipeline expects three thread counts, e.g. 2,4,2");
+                printUsage();
+                System.exit(1);
+            }
+            if ((opts.decryptionPassword.length() > 0) == (opts.encryptionPassword.length() > 0)) {
+                System.err.println("ERROR: --pipeline needs exactly one of -d and -e");
+                printUsage();
+                System.exit(1);
+            }
+        }
+
+        if (!opts.schedule.equals(JCryptScheduler.FIFO) && !opts.schedule.equals(JCryptScheduler.LPT)) {
+            System.err.println("ERROR: Unknown schedule \"" + opts.schedule + "\"");
+            printUsage();
+            System.exit(1);
+        }
+
+        if (!opts.stdoutFormat.equals(JCryptStdout.RAW) && !opts.stdoutFormat.equals(JCryptStdout.BASE64)) {
+            System.err.println("ERROR: Unknown output format \"" + opts.stdoutFormat + "\"");
+            printUsage();
+            System.exit(1);
+        }
+
+        if (!opts.cipher.equals(JCryptSuite.DES) && JCryptSuite.forName(opts.cipher) == null) {
+            System.err.println("ERROR: Unknown cipher \"" + opts.cipher + "\"");
+            printUsage();
+            System.exit(1);
+        }
+
+        if (opts.kdfIterations < 1000 || opts.kdfIterations > JCryptSuite.MAX_ITERATIONS) {
+            System.err.println("ERROR: --kdf-iterations must be from 1000 to " + JCryptSuite.MAX_ITERATIONS);
+            printUsage();
+            System.exit(1);
+        }
+
+        if (opts.compression < 0 || opts.compression > 9) {
+            System.err.println("ERROR: --compress expects a level from 1 (fastest) to 9 (smallest)");
+            printUsage();
+            System.exit(1);
+        }
+
+        if (opts.archive != null && (opts.decryptionPassword.length() > 0) == (opts.encryptionPassword.length() > 0)) {
+            System.err.println("ERROR: --archive needs exactly one of -d (to extract) and -e (to create)");
+            printUsage();
+            System.exit(1);
+        }
+
+        if (opts.list && (opts.archive == null || opts.decryptionPassword.length() == 0)) {
+            System.err.println("ERROR: --list needs --archive and -d");
+            printUsage();
+            System.exit(1);
+        }
+
+        try {
+            opts.logLevel = JCryptLog.Level.valueOf(logLevel.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("ERROR: Unknown log level \"" + logLevel + "\"");
+            printUsage();
+            System.exit(1);
+        }
+
+        if (opts.filenames.length == 0 && (opts.archive == null || opts.encryptionPassword.length() > 0)) { // extracting takes all entries
             System.err.println("ERROR: No files specified");
             printUsage();
             System.exit(2);
@@ -131,17 +515,56 @@ public class JCryptUtil {
         return opts;
     }
 
+    /**
+     * All values of an option given several times, in command-line order.
+     */
+    private static String[] stringValues(CmdLineParser parser, CmdLineParser.Option option) {
+        List<String> values = new ArrayList<>();
+        for (Object value : parser.getOptionValues(option)) {
+            values.add((String)value);
+        }
+        return values.toArray(new String[0]);
+    }
+
     /**
      * Print the expected command-line usage of JCrypt to standard err.
      */
     protected static void printUsage() {
-        System.err.println("USAGE: JCrypt -[c|[d|e password]] [-s] [-t number] files");
+        System.err.println("USAGE: JCrypt -[c threads|[d|e password]] [-s] [-t number] [-b bytes] [-p bytes] [-m] files");
         System.err.println("where options include:");
-        System.err.println("       -c decrypt files by guessing the password");
+        System.err.println("       -c <threads> decrypt files by guessing the password (0 = all cores)");
+        System.err.println("       --charset <chars> characters to guess passwords from");
+        System.err.println("       --min-length <n>, --max-length <n> lengths of passwords to guess");
+        System.err.println("       -w <file> guess the passwords in a wordlist instead (one per line)");
+        System.err.println("       -r <rules> mangling rules applied to wordlist entries, e.g. :,c,d,s");
+        System.err.println("       --checkpoint <file> periodically save cracking progress to a file");
+        System.err.println("       --checkpoint-interval <seconds> time between checkpoints (default 60)");
+        System.err.println("       --resume <file> continue cracking from a checkpoint");
         System.err.println("       -d <password> decrypt files with the provided password");
         System.err.println("       -e <password> encrypt files with the provided password");
+        System.err.println("       --cipher <des|aes-gcm|aes-ctr-hmac> cipher to encrypt with (default des, the legacy format)");
+        System.err.println("       --kdf-iterations <n> PBKDF2 iterations for AES master keys (default 600000, at most 6000000)");
+        System.err.println("       --compress <level> with -s, deflate compressible files (1-9) before encrypting them");
         System.err.println("       -s save output to file (instead of stdout)");
+        System.err.println("       --archive <file> with -e, pack the files (and directories) into one archive encrypted with --cipher;");
+        System.err.println("                        with -d, extract the entries named (or all) into -o or the current directory");
+        System.err.println("       --list with --archive and -d, list the entries of the archive");
+        System.err.println("       --stdout <raw|base64> format of output to stdout (without -s)");
+        System.err.println("       -o <directory> directory to save output files in");
+        System.err.println("       -R process the files in directories, recursively");
+        System.err.println("       --include <glob>, --exclude <glob> with -R, files to process or skip (repeatable)");
+        System.err.println("       --manifest <file> with -s, skip files unchanged since they were last processed");
         System.err.println("       -t <number> number of threads to use");
+        System.err.println("       -b <bytes> stream files larger than this instead of loading them whole");
+        System.err.println("       -p <bytes> encrypt files larger than this in the chunked format, on all cores");
+        System.err.println("       --chunk-size <bytes> cleartext bytes per chunk in the chunked format");
+        System.err.println("       --schedule <fifo|lpt> order of files in the thread pool (lpt = largest first, packed by size)");
+        System.err.println("       --pipeline <r,c,w> read, encrypt and write in pipelined stages with r, c and w threads");
+        System.err.println("       --virtual-threads read and write each file on a virtual thread, encrypt on one thread per core");
+        System.err.println("       --heap-buffers use pooled heap instead of direct (off-heap) I/O buffers");
+        System.err.println("       --buffer-stats print buffer pool hit rate and bytes outstanding at the end");
+        System.err.println("       --log-level <debug|info|warn|error> least severe messages printed (default info)");
+        System.err.println("       -m memory-map files instead of reading them (with -s, when only encrypting or decrypting)");
     }
 
     /**
@@ -150,29 +573,19 @@ public class JCryptUtil {
      * @return data contained in file
      */
     protected static byte[] readRawFile(String filename) throws Problem {
-        File file = new File(filename);
-        InputStream in;
+        FileChannel in = JCryptIO.openForReading(filename);
+        ByteBuffer block = JCryptIO.acquire(JCryptIO.BLOCK_SIZE);
         try {
-            in = new FileInputStream(file);
-        } catch (FileNotFoundException e) {
-            throw new Problem("File \"" + filename + "\" not found");
-        }
-        byte[] buf  = new byte[(int)file.length()];
-        int read = 0;
-        while (read < buf.length) {
-            int result;
-            try {
-                result = in.read(buf, read, buf.length - read);
-            } catch (IOException e) {
-                throw new Problem("Cannot read from file \"" + filename + "\"");
-            }
-            if (result == -1) {
-                break;
-            }
-            read += result;
+            byte[] buf = new byte[wholeFileSize(filename, in.size())];
+            block.limit(0);
+            JCryptIO.read(in, block, buf);
+            return buf;
+        } catch (IOException e) {
+            throw new Problem("Cannot read from file \"" + filename + "\"");
+        } finally {
+            JCryptIO.release(block);
+            JCryptIO.close(in);
         }
-        try { in.close(); } catch (IOException e) {}
-        return buf;
     }
 
     /**
@@ -181,38 +594,46 @@ public class JCryptUtil {
      * @return an EncryptedData object with the encrypted data and a checksum to verify validity after decryption
      */
     protected static EncryptedData readEncryptedFile(String filename) throws Problem {
-        File file = new File(filename);
-        EncryptedData data = new EncryptedData();
-        InputStream in;
+        FileChannel in = JCryptIO.openForReading(filename);
+        ByteBuffer block = JCryptIO.acquire(JCryptIO.BLOCK_SIZE);
         try {
-            in = new FileInputStream(file);
-        } catch (FileNotFoundException e) {
-            throw new Problem("File \"" + filename + "\" not found");
-        }
-        byte[] checksum = new byte[8];
-        data.content = new byte[(int)file.length()-8];
-        int read = 0;
-        while (read < file.length()) {
-            int result;
-            try {
-                if (read < 8) {
-                    checksum[read] = (byte)(result = in.read());
-                    result = (result < 0) ? -1 : 1;
-                } else {
-                    result = in.read(data.content, read-8, (int)file.length()-read);
-                }
-            } catch (IOException e) {
-                throw new Problem("Cannot read from file \"" + filename + "\"");
+            long size = in.size();
+            if (size < 8) {
+                throw new Problem("File \"" + filename + "\" is not a JCrypt file");
+            }
+            EncryptedData data = new EncryptedData();
+            data.content = new byte[wholeFileSize(filename, size - 8)];
+            block.limit((int) Math.min(block.capacity(), size));
+            JCryptIO.readFully(in, block);
+            block.flip();
+            data.checksum = block.getLong();
+            if ((data.checksum >>> 32) == JCryptChunked.MAGIC) {
+                throw new Problem("File \"" + filename + "\" is in the chunked format");
             }
-            if (result == -1) {
-                break;
+            if ((data.checksum >>> 32) == JCryptSuite.MAGIC) { // versioned format: keep the whole file, header included
+                data.suite = JCryptSuite.forId(block.get(5), filename);
+                data.checksum = 0;
+                data.content = new byte[wholeFileSize(filename, size)];
+                block.rewind();
             }
+            JCryptIO.read(in, block, data.content);
+            return data;
+        } catch (IOException e) {
+            throw new Problem("Cannot read from file \"" + filename + "\"");
+        } finally {
+            JCryptIO.release(block);
+            JCryptIO.close(in);
+        }
+    }
 
-            read += result;
+    /**
+     * Check that a file fits in a byte array.
+     */
+    private static int wholeFileSize(String filename, long size) throws Problem {
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new Problem("File \"" + filename + "\" is too large to load whole (use -b to stream it)");
         }
-        try { in.close(); } catch (IOException e) {}
-        data.checksum = ByteBuffer.allocate(8).put(checksum).getLong(0);
-        return data;
+        return (int) size;
     }
 
     /**
@@ -221,12 +642,15 @@ public class JCryptUtil {
      * @param filename of file to write
      */
     protected static void writeRawFile(byte[] buffer, String filename) throws Problem {
+        FileChannel out = JCryptIO.openForWriting(filename);
+        ByteBuffer block = JCryptIO.acquire(JCryptIO.BLOCK_SIZE);
         try {
-            FileOutputStream fos = new FileOutputStream(filename);
-            fos.write(buffer);
-            fos.close();
+            JCryptIO.write(out, block, buffer);
         } catch (IOException e) {
             throw new Problem("Cannot write to file \"" + filename + "\"");
+        } finally {
+            JCryptIO.release(block);
+            JCryptIO.close(out);
         }
     }
 
@@ -236,39 +660,256 @@ public class JCryptUtil {
      * @param filename of file to write
      */
     protected static void writeEncryptedFile(EncryptedData data, String filename) throws Problem {
+        FileChannel out = JCryptIO.openForWriting(filename);
+        ByteBuffer block = JCryptIO.acquire(JCryptIO.BLOCK_SIZE);
+        try {
+            if (data.suite == null) {
+                block.putLong(data.checksum);
+            }
+            JCryptIO.write(out, block, data.content);
+        } catch (IOException e) {
+            throw new Problem("Cannot write to file \"" + filename + "\"");
+        } finally {
+            JCryptIO.release(block);
+            JCryptIO.close(out);
+        }
+    }
+
+    /**
+     * Encrypt a whole file into a file that can be read by readEncryptedFile,
+     * holding its data in pooled buffers (see PooledData).
+     * @param password with which the cleartext is to be encrypted
+     * @param source name of the cleartext file
+     * @param target name of the encrypted file to write
+     */
+    protected static void encryptFile(String password, String source, String target) throws Problem {
+        PooledData clear = readPooled(source, false);
+        try {
+            PooledData sealed = encryptPooled(password, clear);
+            try {
+                writePooled(sealed, target);
+            } finally {
+                sealed.release();
+            }
+        } finally {
+            clear.release();
+        }
+    }
+
+    /**
+     * Decrypt a whole file written by encryptFile or writeEncryptedFile,
+     * holding its data in pooled buffers (see PooledData).
+     * @param password with which the ciphertext is encrypted
+     * @param source name of the encrypted file
+     * @param target name of the cleartext file to write
+     */
+    protected static void decryptFile(String password, String source, String target) throws Problem {
+        PooledData sealed = readPooled(source, true);
+        if (JCryptChecksum.isDeflated(sealed.checksum)) { // inflated size unknown: stream it
+            sealed.release();
+            JCryptStream.decryptFile(password, source, target);
+            return;
+        }
         try {
-            FileOutputStream fos = new FileOutputStream(filename);
-            //System.out.println(data.checksum);
-            //byte[] chbuf = ByteBuffer.allocate(8).putLong(data.checksum).array();
-            //System.out.println(ByteBuffer.allocate(8).put(chbuf).getLong(0));
-            fos.write(ByteBuffer.allocate(8).putLong(data.checksum).array());
-            fos.write(data.content);
-            fos.close();
+            PooledData clear = decryptPooled(password, sealed);
+            try {
+                writePooled(clear, target);
+            } finally {
+                clear.release();
+            }
+        } finally {
+            sealed.release();
+        }
+    }
+
+    /**
+     * Read a file into a pooled buffer.
+     * @param filename of file to read
+     * @param encrypted true if the file starts with a JCrypt checksum (as written by writeEncryptedFile)
+     */
+    protected static PooledData readPooled(String filename, boolean encrypted) throws Problem {
+        FileChannel in = JCryptIO.openForReading(filename);
+        ByteBuffer block = JCryptIO.acquire(JCryptIO.BLOCK_SIZE);
+        PooledData data = null;
+        try {
+            long size = in.size();
+            long header = encrypted ? 8 : 0;
+            if (size < header) {
+                throw new Problem("File \"" + filename + "\" is not a JCrypt file");
+            }
+            data = new PooledData(wholeFileSize(filename, size - header), encrypted);
+            block.limit((int) Math.min(block.capacity(), size));
+            JCryptIO.readFully(in, block);
+            block.flip();
+            if (encrypted) {
+                data.checksum = block.getLong();
+                if ((data.checksum >>> 32) == JCryptChunked.MAGIC || (data.checksum >>> 32) == JCryptSuite.MAGIC) {
+                    throw new Problem("File \"" + filename + "\" is not in the legacy format");
+                }
+            }
+            JCryptIO.read(in, block, data.data, data.length);
+            PooledData result = data;
+            data = null;
+            return result;
+        } catch (IOException e) {
+            throw new Problem("Cannot read from file \"" + filename + "\"");
+        } finally {
+            if (data != null) { // failed
+                data.release();
+            }
+            JCryptIO.release(block);
+            JCryptIO.close(in);
+        }
+    }
+
+    /**
+     * Encrypt pooled cleartext into a new pooled buffer (with the checksum of the cleartext).
+     */
+    protected static PooledData encryptPooled(String password, PooledData clear) throws Problem {
+        Cipher cipher = makeCipher(password, Cipher.ENCRYPT_MODE);
+        Checksum crc = JCryptChecksum.create();
+        PooledData sealed = new PooledData(cipher.getOutputSize(clear.length), true);
+        try {
+            sealed.length = JCryptChecksum.doFinal(cipher, clear.data, clear.length, sealed.data, crc, true);
+        } catch (Exception e) {
+            sealed.release();
+            discardCipher(password, Cipher.ENCRYPT_MODE);
+            throw new Problem("Encryption failed");
+        }
+        sealed.checksum = JCryptChecksum.stored(crc);
+        return sealed;
+    }
+
+    /**
+     * Decrypt pooled ciphertext into a new pooled buffer, and verify its checksum.
+     */
+    protected static PooledData decryptPooled(String password, PooledData sealed) throws Problem {
+        Cipher cipher = makeCipher(password, Cipher.DECRYPT_MODE);
+        Checksum crc = JCryptChecksum.forStored(sealed.checksum);
+        PooledData clear = new PooledData(cipher.getOutputSize(sealed.length), false);
+        try {
+            clear.length = JCryptChecksum.doFinal(cipher, sealed.data, sealed.length, clear.data, crc, false);
+        } catch (Exception e) {
+            clear.release();
+            discardCipher(password, Cipher.DECRYPT_MODE);
+            throw new Problem("Decryption failed ");
+        }
+        if (JCryptChecksum.stored(crc) != sealed.checksum) {
+            clear.release();
+            throw new Problem("Checksum (" + sealed.checksum + ") invalid ");
+        }
+        return clear;
+    }
+
+    /**
+     * Write pooled data into a file (preceded by its checksum if it is encrypted).
+     */
+    protected static void writePooled(PooledData data, String filename) throws Problem {
+        FileChannel out = JCryptIO.openForWriting(filename);
+        ByteBuffer block = JCryptIO.acquire(JCryptIO.BLOCK_SIZE);
+        try {
+            if (data.encrypted) {
+                block.putLong(data.checksum);
+            }
+            JCryptIO.write(out, block, data.data, data.length);
         } catch (IOException e) {
             throw new Problem("Cannot write to file \"" + filename + "\"");
+        } finally {
+            JCryptIO.release(block);
+            JCryptIO.close(out);
+        }
+    }
+
+    /**
+     * The data of a file in an array from JCryptBufferPool, which may be longer
+     * than the data. Must be released once no longer needed.
+     */
+    protected static class PooledData {
+        public final byte[] data;
+        public int length;
+        public final boolean encrypted;
+        public long checksum;
+
+        PooledData(int length, boolean encrypted) {
+            this.data = JCryptBufferPool.SHARED.array(length);
+            this.length = length;
+            this.encrypted = encrypted;
+        }
+
+        public void release() {
+            JCryptBufferPool.SHARED.release(data);
         }
     }
 
     /**
      * Object containing data (assumed to be encrypted)
      * and a checksum (assumed to be of the decrypted data, to verify validity).
+     * Data in a cipher suite's format has no separate checksum: its content is
+     * the whole file, which the suite authenticates.
      */
     protected static class EncryptedData {
         public long checksum;
         public byte[] content;
+        public JCryptSuite suite = null; // null: legacy format
     }
 
     /**
      * Object containing parsed command-line options as relevant to JCrypt.
      */
-    protected static class Options {
+    protected static class Options implements Cloneable {
         public boolean crack = false;
+        public int crackThreads = 0;
+        public String charset = JCryptCracker.DEFAULT_CHARSET;
+        public int minLength = 1;
+        public int maxLength = 4;
+        public String wordlist = null;
+        public String rules = JCryptWordlist.DEFAULT_RULES;
+        public String checkpointFile = null;
+        public int checkpointInterval = 60;
+        public String resumeFile = null;
         public boolean saveToFile = false;
         public String decryptionPassword = "";
         public String encryptionPassword = "";
         public int threads = 0;
         public String[] filenames = new String[0];
         public String outputDirectory = null;
+        public long streamThreshold = 64L * 1024 * 1024;
+        public long parallelThreshold = Long.MAX_VALUE;
+        public int chunkSize = JCryptChunked.DEFAULT_CHUNK_SIZE;
+        public boolean mmap = false;
+        public String schedule = JCryptScheduler.FIFO;
+        public boolean virtualThreads = false;
+        public int[] pipeline = null;
+        public boolean heapBuffers = false;
+        public boolean bufferStats = false;
+        public JCryptLog.Level logLevel = JCryptLog.Level.INFO;
+        public String stdoutFormat = JCryptStdout.RAW;
+        public boolean recursive = false;
+        public String[] includes = new String[0];
+        public String[] excludes = new String[0];
+        public String manifestFile = null;
+        public JCryptManifest manifest = null; // loaded from manifestFile by JCrypt.main
+        public String cipher = JCryptSuite.DES;
+        public int kdfIterations = JCryptSuite.ITERATIONS;
+        public int compression = 0;
+        public String archive = null;
+        public boolean list = false;
+
+        /**
+         * A copy of these options for a single file found by JCryptWalker.
+         * @param filename the file
+         * @param outputDirectory where its output goes (null: the default place)
+         */
+        Options forFile(String filename, String outputDirectory) {
+            try {
+                Options copy = (Options) clone();
+                copy.filenames = new String[] { filename };
+                copy.outputDirectory = outputDirectory;
+                return copy;
+            } catch (CloneNotSupportedException e) {
+                throw new AssertionError(e);
+            }
+        }
     }
 
     /**
@@ -0,0 +1,224 @@
+package cp3.lab04.crypt;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Execution strategy for I/O-bound batches (e.g. files on network storage):
+ * every file gets its own virtual thread, which blocks on reading and writing
+ * as long as it needs to, while the encryption/decryption itself is handed to
+ * a pool of platform threads sized to the number of cores. Many files can thus
+ * wait on I/O at once without oversubscribing the CPU. Files loaded whole hold
+ * their bytes until they are written, so they take a share of MAX_BYTES_IN_FLIGHT
+ * first; files that are streamed instead are processed on the CPU pool.
+ *
+ * <p>Virtual threads need Java 21; they are looked up reflectively, and on older
+ * runtimes a fixed pool of platform threads (PLATFORM_THREADS_PER_CORE per cipher
+ * thread) takes their place.
+ */
+class JCryptVirtualThreads {
+
+    /** Bytes of the files loaded whole that may be in memory at once. */
+    static final int MAX_BYTES_IN_FLIGHT = 256 * 1024 * 1024;
+
+    /** Least share of MAX_BYTES_IN_FLIGHT a file takes, which bounds the files open at once. */
+    static final int MIN_BYTES_PER_FILE = 1024 * 1024;
+
+    /** Platform threads per cipher thread waiting on I/O, when there are no virtual threads. */
+    static final int PLATFORM_THREADS_PER_CORE = 8;
+
+    private final JCryptUtil.Options opts;
+    private final ExecutorService io;
+    private final ExecutorService cpu;
+    private final boolean virtual;
+    private final int cpuThreads;
+    private final Semaphore inFlight = new Semaphore(MAX_BYTES_IN_FLIGHT);
+
+    /**
+     * @param opts JCrypt command-line options
+     * @param cpuThreads size of the pool doing cipher work (0 = one per core)
+     */
+    JCryptVirtualThreads(JCryptUtil.Options opts, int cpuThreads) {
+        this.opts = opts;
+        this.cpuThreads = cpuThreads > 0 ? cpuThreads : Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = newVirtualThreadPerTaskExecutor();
+        this.virtual = executor != null;
+        this.io = virtual ? executor : Executors.newFixedThreadPool(this.cpuThreads * PLATFORM_THREADS_PER_CORE);
+        this.cpu = Executors.newFixedThreadPool(this.cpuThreads);
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor() if the runtime has it, else null.
+     */
+    static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return true if files are run on virtual threads (false: platform threads)
+     */
+    boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * Number of threads doing cipher work.
+     */
+    int cpuThreads() {
+        return cpuThreads;
+    }
+
+    /**
+     * Process all files of the batch and wait for them to finish.
+     * @param listener told when each file starts and finishes (or fails)
+     */
+    void run(Listener listener) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(opts.filenames.length);
+        for (int i = 0; i < opts.filenames.length; i++) {
+            final int index = i;
+            io.execute(() -> {
+                String error = null;
+                listener.started(index);
+                try {
+                    process(index);
+                } catch (JCryptUtil.Problem e) {
+                    error = e.getMessage();
+                } catch (InterruptedException e) {
+                    error = "Interrupted";
+                } finally {
+                    listener.finished(index, error);
+                    latch.countDown();
+                }
+            });
+        }
+        try {
+            latch.await();
+        } finally {
+            shutdown();
+        }
+    }
+
+    /**
+     * Stop the pools (running files are interrupted).
+     */
+    void shutdown() {
+        io.shutdownNow();
+        cpu.shutdownNow();
+    }
+
+    /**
+     * Follows the files processed by run(). Called on the files' threads.
+     */
+    interface Listener {
+        void started(int index);
+
+        /**
+         * @param error the reason the file failed, or null if it was processed
+         */
+        void finished(int index, String error);
+    }
+
+    /**
+     * Process one file: read and write on the calling (I/O) thread, encrypt or
+     * decrypt on the CPU pool. Files that process() does not load whole (chunked,
+     * streamed or mapped ones) and output to stdout are left to process(), run
+     * on the CPU pool as their reading and writing is interleaved with cipher work.
+     */
+    void process(int index) throws JCryptUtil.Problem, InterruptedException {
+        String filename = opts.filenames[index];
+        boolean decrypt = opts.decryptionPassword.length() > 0;
+        boolean encrypt = opts.encryptionPassword.length() > 0;
+        long size = JCrypt.getFileSize(filename);
+        boolean whole = opts.saveToFile && decrypt != encrypt && !opts.mmap && size <= opts.streamThreshold
+                && (decrypt ? !JCryptChunked.isChunked(filename) && !JCryptSuite.isSuiteFile(filename) && !JCryptStream.isDeflated(filename)
+                        : JCryptSuite.forName(opts.cipher) == null && opts.compression == 0 && size <= opts.parallelThreshold);
+        if (!whole) {
+            onCpu(() -> {
+                JCrypt.process(opts, index);
+                return null;
+            });
+            return;
+        }
+        JCryptManifest.Entry entry = null;
+        if (JCrypt.manifested(opts)) { // as process() does
+            entry = JCrypt.checkManifest(opts, index);
+            if (entry == null) {
+                return;
+            }
+        }
+        int bytes = (int) Math.min(MAX_BYTES_IN_FLIGHT, Math.max(size, MIN_BYTES_PER_FILE));
+        inFlight.acquire(bytes);
+        try {
+            transform(index, decrypt);
+        } finally {
+            inFlight.release(bytes);
+        }
+        if (entry != null) {
+            opts.manifest.record(entry);
+        }
+    }
+
+    /**
+     * Read a file whole, encrypt or decrypt it on the CPU pool, and write the result.
+     */
+    private void transform(int index, boolean decrypt) throws JCryptUtil.Problem, InterruptedException {
+        String filename = opts.filenames[index];
+        if (decrypt) {
+            JCryptLog.info("Decrypting " + filename);
+            JCryptUtil.PooledData sealed = JCryptUtil.readPooled(filename, true);
+            try {
+                JCryptUtil.PooledData clear = onCpu(() -> JCryptUtil.decryptPooled(opts.decryptionPassword, sealed));
+                try {
+                    JCryptUtil.writePooled(clear, JCrypt.decryptedOutputPath(opts, index));
+                } finally {
+                    clear.release();
+                }
+            } finally {
+                sealed.release();
+            }
+        } else {
+            JCryptLog.info("Encrypting " + filename);
+            JCryptUtil.PooledData clear = JCryptUtil.readPooled(filename, false);
+            try {
+                JCryptUtil.PooledData sealed = onCpu(() -> JCryptUtil.encryptPooled(opts.encryptionPassword, clear));
+                try {
+                    JCryptUtil.writePooled(sealed, JCrypt.encryptedOutputPath(opts, index));
+                } finally {
+                    sealed.release();
+                }
+            } finally {
+                clear.release();
+            }
+        }
+    }
+
+    private interface CipherWork<T> {
+        T run() throws JCryptUtil.Problem;
+    }
+
+    /**
+     * Run cipher work on the CPU pool and wait for its result.
+     */
+    private <T> T onCpu(CipherWork<T> work) throws JCryptUtil.Problem, InterruptedException {
+        Future<T> result = cpu.submit(() -> work.run());
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof JCryptUtil.Problem) {
+                throw (JCryptUtil.Problem) e.getCause();
+            }
+            throw new JCryptUtil.Problem(String.valueOf(e.getCause()));
+        } catch (InterruptedException e) {
+            result.cancel(true);
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package cp3.lab04.crypt;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Recursive processing of directory trees (-R). Directories are listed in
+ * parallel on a fork/join pool, one task per directory, and every file found
+ * is handed to the worker pool at once, so processing starts long before the
+ * walk finishes. At most IN_FLIGHT_PER_THREAD files per worker wait in the
+ * pool's queue; beyond that the walk waits, so memory stays bounded for trees
+ * of any size.
+ *
+ * <p>Files are selected with --include/--exclude globs: a glob containing '/'
+ * is matched against the path relative to the directory on the command line,
+ * any other glob against the file name. Excluded directories are not entered.
+ * Outputs are written under the output directory (-o) at the same relative
+ * path as their input, or next to the input without -o. A Task given to the
+ * walker replaces that processing (see JCryptArchive).
+ */
+class JCryptWalker {
+
+    /** Files per worker thread that may be queued before the walk waits. */
+    static final int IN_FLIGHT_PER_THREAD = 64;
+
+    private final JCryptUtil.Options opts;
+    private final int threads;
+    private final ExecutorService workers;
+    private final ForkJoinPool walkers;
+    private final Semaphore inFlight;
+    private final List<Glob> includes = new ArrayList<>();
+    private final List<Glob> excludes = new ArrayList<>();
+    private final Path outputRoot;
+    private final LongAdder found = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final Task task;
+
+    /**
+     * What is done with each file selected, instead of JCrypt.process.
+     */
+    interface Task {
+        /**
+         * @param file the file
+         * @param relative its path relative to the walked directory
+         */
+        void run(Path file, Path relative) throws JCryptUtil.Problem, IOException, InterruptedException;
+    }
+
+    /**
+     * A glob, matched against the relative path or only the file name.
+     */
+    private static class Glob {
+        final PathMatcher matcher;
+        final boolean wholePath;
+
+        Glob(String pattern) {
+            this.matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+            this.wholePath = pattern.contains("/");
+        }
+
+        boolean matches(Path relative) {
+            Path name = relative.getFileName();
+            return matcher.matches(wholePath || name == null ? relative : name);
+        }
+    }
+
+    /**
+     * @param opts JCrypt command-line options (the files and directories to walk, globs, output directory)
+     * @param threads number of worker threads (0 = one per core)
+     */
+    JCryptWalker(JCryptUtil.Options opts, int threads) {
+        this(opts, threads, null);
+    }
+
+    /**
+     * @param opts JCrypt command-line options (the files and directories to walk, globs)
+     * @param threads number of worker threads (0 = one per core)
+     * @param task run on every file selected (null to process them with JCrypt.process)
+     */
+    JCryptWalker(JCryptUtil.Options opts, int threads, Task task) {
+        this.opts = opts;
+        this.task = task;
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        this.workers = Executors.newFixedThreadPool(this.threads);
+        this.walkers = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        this.inFlight = new Semaphore(this.threads * IN_FLIGHT_PER_THREAD);
+        for (String pattern : opts.includes) {
+            includes.add(new Glob(pattern));
+        }
+        for (String pattern : opts.excludes) {
+            excludes.add(new Glob(pattern));
+        }
+        this.outputRoot = opts.outputDirectory != null ? Paths.get(opts.outputDirectory).toAbsolutePath().normalize() : null;
+    }
+
+    /**
+     * Number of worker threads.
+     */
+    int threads() {
+        return threads;
+    }
+
+    /**
+     * Files found so far.
+     */
+    long found() {
+        return found.sum();
+    }
+
+    /**
+     * Files that could not be processed.
+     */
+    long failed() {
+        return failed.sum();
+    }
+
+    /**
+     * Walk all files and directories of the batch, process every file selected,
+     * and wait for them to finish.
+     */
+    void run() throws InterruptedException {
+        try {
+            List<Walk> roots = new ArrayList<>();
+            for (String name : opts.filenames) {
+                Path root = Paths.get(name);
+                if (Files.isDirectory(root)) {
+                    roots.add(new Walk(root, root));
+                } else if (Files.exists(root)) {
+                    dispatch(root, root.getFileName());
+                } else {
+                    JCryptLog.error("ERROR: File \"" + name + "\" not found");
+                    failed.increment();
+                }
+            }
+            for (Walk walk : roots) {
+                walkers.execute(walk);
+            }
+            for (Walk walk : roots) {
+                walk.join();
+            }
+        } finally {
+            walkers.shutdown();
+            workers.shutdown();
+        }
+        inFlight.acquire(threads * IN_FLIGHT_PER_THREAD); // every file has been processed
+    }
+
+    /**
+     * Lists one directory: hands its files to the workers, then walks its subdirectories in parallel.
+     */
+    @SuppressWarnings("serial")
+    private class Walk extends RecursiveAction {
+        final Path root;
+        final Path dir;
+
+        Walk(Path root, Path dir) {
+            this.root = root;
+            this.dir = dir;
+        }
+
+        @Override
+        protected void compute() {
+            // list the whole directory before processing its files, so outputs written next to them are not picked up
+            List<Path> files = new ArrayList<>();
+            List<Walk> subdirs = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path entry : entries) {
+                    Path relative = root.relativize(entry);
+                    if (excluded(relative)) {
+                        continue;
+                    }
+                    BasicFileAttributes attrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    if (attrs.isDirectory()) { // symbolic links to directories are not followed
+                        if (!entry.toAbsolutePath().normalize().equals(outputRoot)) {
+                            subdirs.add(new Walk(root, entry));
+                        }
+                    } else if ((attrs.isRegularFile() || Files.isRegularFile(entry)) && included(relative)) {
+                        files.add(entry);
+                    }
+                }
+            } catch (IOException e) {
+                JCryptLog.error("ERROR: Cannot list directory \"" + dir + "\"");
+                failed.increment();
+            }
+            try {
+                for (Path file : files) {
+                    dispatch(file, root.relativize(file));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            invokeAll(subdirs);
+        }
+    }
+
+    private boolean included(Path relative) {
+        if (includes.isEmpty()) {
+            return true;
+        }
+        for (Glob glob : includes) {
+            if (glob.matches(relative)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean excluded(Path relative) {
+        for (Glob glob : excludes) {
+            if (glob.matches(relative)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Queue a file for the workers (waiting while too many are queued).
+     * @param file the file to process
+     * @param relative its path relative to the walked directory
+     */
+    private void dispatch(Path file, Path relative) throws InterruptedException {
+        if (task != null) {
+            found.increment();
+            inFlight.acquire();
+            workers.execute(() -> {
+                try {
+                    task.run(file, relative);
+                } catch (JCryptUtil.Problem e) {
+                    JCryptLog.error("ERROR in thread: " + e.getMessage());
+                    failed.increment();
+                } catch (IOException e) {
+                    JCryptLog.error("ERROR in thread: Cannot process file \"" + file + "\"");
+                    failed.increment();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failed.increment();
+                } finally {
+                    inFlight.release();
+                }
+            });
+            return;
+        }
+        Path parent = relative.getParent();
+        Path outputDir = outputRoot == null ? file.getParent() : parent == null ? outputRoot : outputRoot.resolve(parent);
+        JCryptUtil.Options fileOpts = opts.forFile(file.toString(), outputDir == null ? null : outputDir.toString());
+        found.increment();
+        inFlight.acquire();
+        workers.execute(() -> {
+            try {
+                if (fileOpts.saveToFile && fileOpts.outputDirectory != null) {
+                    Files.createDirectories(Paths.get(fileOpts.outputDirectory));
+                }
+                JCrypt.process(fileOpts, 0);
+            } catch (JCryptUtil.Problem e) {
+                JCryptLog.error("ERROR in thread: " + e.getMessage());
+                failed.increment();
+            } catch (IOException e) {
+                JCryptLog.error("ERROR in thread: Cannot create directory \"" + fileOpts.outputDirectory + "\"");
+                failed.increment();
+            } finally {
+                inFlight.release();
+            }
+        });
+    }
+}
@@ -0,0 +1,243 @@
+package cp3.lab04.crypt;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Dictionary candidate space for JCryptCracker: the words of a wordlist file,
+ * each expanded by a set of mangling rules.
+ * The wordlist is memory-mapped rather than read into the heap; positions are
+ * byte offsets into the file and a range owns every line that starts inside it,
+ * so workers can split the file at arbitrary offsets.
+ *
+ * <p>Rules are given as a comma-separated list; each rule is applied to every
+ * word to produce candidates, by applying its operations from left to right:
+ * <pre>
+ *   :  the word unchanged        u  upper-case all letters
+ *   l  lower-case all letters    c  capitalise the first letter
+ *   t  toggle the case of all letters
+ *   s  leet substitutions (a=4 e=3 i=1 o=0 s=5 t=7)
+ *   d  append each digit 0-9     D  append each number 00-99
+ * </pre>
+ * For example "<code>:,c,d,cD,s</code>" tries each word as-is, capitalised,
+ * with a digit appended, capitalised with two digits appended, and in leetspeak.
+ */
+public class JCryptWordlist implements JCryptCracker.Space, Closeable {
+
+    /** Default rules: each word as-is. */
+    public static final String DEFAULT_RULES = ":";
+
+    /** Lines longer than this are skipped. */
+    static final int MAX_WORD = 256;
+
+    /** Bytes of wordlist searched as one unit of work. */
+    private static final long GRAIN = 1 << 16;
+
+    private static final int MAX_OPS = 16;
+
+    private final String filename;
+    private final FileChannel channel;
+    private final long size;
+    private final byte[][] rules;
+    private final String rulesText;
+
+    /**
+     * @param filename wordlist file, one word per line
+     * @param rules comma-separated mangling rules (see class description)
+     */
+    public JCryptWordlist(String filename, String rules) throws JCryptUtil.Problem {
+        this.filename = filename;
+        this.rules = parseRules(rules);
+        this.rulesText = rules;
+        try {
+            channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+            size = channel.size();
+        } catch (IOException e) {
+            throw new JCryptUtil.Problem("Cannot read from file \"" + filename + "\"");
+        }
+    }
+
+    private static byte[][] parseRules(String rules) throws JCryptUtil.Problem {
+        List<byte[]> parsed = new ArrayList<>();
+        for (String rule : rules.split(",")) {
+            rule = rule.trim();
+            if (rule.length() > MAX_OPS) {
+                throw new JCryptUtil.Problem("Rule \"" + rule + "\" is too long");
+            }
+            for (int i = 0; i < rule.length(); i++) {
+                if (":ulctsdD".indexOf(rule.charAt(i)) < 0) {
+                    throw new JCryptUtil.Problem("Unknown rule operation '" + rule.charAt(i) + "'");
+                }
+            }
+            parsed.add(rule.replace(":", "").getBytes());
+        }
+        if (parsed.isEmpty()) {
+            throw new JCryptUtil.Problem("No rules given");
+        }
+        return parsed.toArray(new byte[0][]);
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public long grain() {
+        return GRAIN;
+    }
+
+    @Override
+    public String describe() {
+        return "wordlist file=" + filename + " size=" + size + " rules=" + rulesText;
+    }
+
+    @Override
+    public boolean search(long from, long to, JCryptCracker.Tester tester) throws JCryptUtil.Problem {
+        // map one byte before the range (to see whether a line starts at 'from')
+        // and enough after it to finish the last line
+        long start = Math.max(0, from - 1);
+        long end = Math.min(size, to + MAX_WORD + 1);
+        MappedByteBuffer map;
+        try {
+            map = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        } catch (IOException e) {
+            throw new JCryptUtil.Problem("Cannot map file \"" + filename + "\"");
+        }
+        int limit = (int) (end - start);
+        int owned = (int) (to - start); // lines starting before this offset are ours
+        int pos = 0;
+        if (from > 0) { // skip the tail of a line that started in the previous range
+            while (pos < limit && map.get(pos) != '\n') {
+                pos++;
+            }
+            pos++;
+        }
+        Mangler mangler = MANGLERS.get();
+        while (pos < owned && pos < limit) {
+            int lineEnd = pos;
+            while (lineEnd < limit && map.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            int length = lineEnd - pos;
+            if (length > 0 && map.get(lineEnd - 1) == '\r') {
+                length--;
+            }
+            if (length > 0 && length <= MAX_WORD) {
+                byte[] word = mangler.stack[0];
+                for (int i = 0; i < length; i++) {
+                    word[i] = map.get(pos + i);
+                }
+                for (byte[] rule : rules) {
+                    if (mangler.apply(rule, 0, length, tester)) {
+                        return true;
+                    }
+                }
+            }
+            pos = lineEnd + 1;
+        }
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /** One set of candidate buffers per worker thread. */
+    private static final ThreadLocal<Mangler> MANGLERS = new ThreadLocal<Mangler>() {
+        @Override
+        protected Mangler initialValue() {
+            return new Mangler();
+        }
+    };
+
+    /**
+     * Applies rule operations without allocating: stack[i] holds the candidate
+     * after the first i operations, so expansions can rewrite their suffix
+     * without undoing later operations.
+     */
+    private static class Mangler {
+        final byte[][] stack = new byte[MAX_OPS + 1][MAX_WORD + 2 * MAX_OPS];
+
+        boolean apply(byte[] rule, int op, int length, JCryptCracker.Tester tester) {
+            byte[] word = stack[op];
+            if (op == rule.length) {
+                return tester.test(word, length);
+            }
+            byte[] next = stack[op + 1];
+            System.arraycopy(word, 0, next, 0, length);
+            switch (rule[op]) {
+                case 'u':
+                    for (int i = 0; i < length; i++) {
+                        next[i] = upper(next[i]);
+                    }
+                    break;
+                case 'l':
+                    for (int i = 0; i < length; i++) {
+                        next[i] = lower(next[i]);
+                    }
+                    break;
+                case 'c':
+                    next[0] = upper(next[0]);
+                    break;
+                case 't':
+                    for (int i = 0; i < length; i++) {
+                        next[i] = next[i] == upper(next[i]) ? lower(next[i]) : upper(next[i]);
+                    }
+                    break;
+                case 's':
+                    for (int i = 0; i < length; i++) {
+                        next[i] = leet(next[i]);
+                    }
+                    break;
+                case 'd':
+                    for (byte d = '0'; d <= '9'; d++) {
+                        next[length] = d;
+                        if (apply(rule, op + 1, length + 1, tester)) {
+                            return true;
+                        }
+                    }
+                    return false;
+                case 'D':
+                    for (byte d1 = '0'; d1 <= '9'; d1++) {
+                        for (byte d2 = '0'; d2 <= '9'; d2++) {
+                            next[length] = d1;
+                            next[length + 1] = d2;
+                            if (apply(rule, op + 1, length + 2, tester)) {
+                                return true;
+                            }
+                        }
+                    }
+                    return false;
+            }
+            return apply(rule, op + 1, length, tester);
+        }
+
+        private static byte upper(byte b) {
+            return b >= 'a' && b <= 'z' ? (byte) (b - 32) : b;
+        }
+
+        private static byte lower(byte b) {
+            return b >= 'A' && b <= 'Z' ? (byte) (b + 32) : b;
+        }
+
+        private static byte leet(byte b) {
+            switch (b) {
+                case 'a': case 'A': return '4';
+                case 'e': case 'E': return '3';
+                case 'i': case 'I': return '1';
+                case 'o': case 'O': return '0';
+                case 's': case 'S': return '5';
+                case 't': case 'T': return '7';
+                default: return b;
+            }
+        }
+    }
+}